@@ -7,13 +7,22 @@ import bio.ferlab.clin.qlinme.controllers.AuthController;
 import bio.ferlab.clin.qlinme.controllers.BatchController;
 import bio.ferlab.clin.qlinme.handlers.ExceptionHandler;
 import bio.ferlab.clin.qlinme.handlers.HealthCheckHandler;
+import bio.ferlab.clin.qlinme.handlers.MetricsHandler;
 import bio.ferlab.clin.qlinme.handlers.SecurityHandler;
 import bio.ferlab.clin.qlinme.handlers.Slf4jRequestLogger;
+import bio.ferlab.clin.qlinme.services.CRAMsValidationService;
+import bio.ferlab.clin.qlinme.services.ChecksumsValidationService;
 import bio.ferlab.clin.qlinme.services.FilesValidationService;
 import bio.ferlab.clin.qlinme.services.MetadataValidationService;
+import bio.ferlab.clin.qlinme.services.ReferenceDataService;
+import bio.ferlab.clin.qlinme.services.VCFsIndexService;
 import bio.ferlab.clin.qlinme.services.VCFsValidationService;
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
+import bio.ferlab.clin.qlinme.utils.S3CacheJanitor;
 import bio.ferlab.clin.qlinme.utils.S3TimedCache;
 import bio.ferlab.clin.qlinme.utils.Utils;
+import bio.ferlab.clin.qlinme.utils.VCFIntegrityScanner;
+import bio.ferlab.clin.qlinme.utils.WriteBehind;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import io.javalin.Javalin;
@@ -23,6 +32,10 @@ import io.javalin.json.JavalinJackson;
 import io.javalin.validation.ValidationException;
 import lombok.extern.slf4j.Slf4j;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 @Slf4j
 public class App {
 
@@ -41,13 +54,36 @@ public class App {
     final S3Client s3Client = new S3Client(CONFIG.awsEndpoint, CONFIG.awsAccessKey, CONFIG.awsSecretKey, 15000);
     final KeycloakClient keycloakClient = new KeycloakClient(CONFIG.securityIssuer, CONFIG.securityClient, CONFIG.securityAudience, 15000);
     final SecurityHandler securityHandler = new SecurityHandler(CONFIG.securityIssuer, CONFIG.securityAudience, CONFIG.securitySystem);
-    final S3TimedCache fhirCache = new S3TimedCache(s3Client, CONFIG.awsBucket, objectMapper.getMapper(), CONFIG.fhirCacheInHour);
-    final FhirClient fhirClient = new FhirClient(CONFIG.fhirUrl, 15000, 20, fhirCache);
+    final CacheCodec cacheCodec = new CacheCodec(objectMapper.getMapper(), CONFIG.cacheCodec);
+    final WriteBehind cacheWriteBehind = new WriteBehind(CONFIG.cacheWriteBehindCapacity, 100, 20);
+    final S3TimedCache fhirCache = new S3TimedCache(s3Client, CONFIG.awsBucket, cacheCodec, CONFIG.fhirCacheInHour, CONFIG.cacheLocalMaxMB * 1024L * 1024L,
+      Duration.ofMinutes(CONFIG.cacheStaleGraceInMinutes), cacheWriteBehind);
+    final S3CacheJanitor cacheJanitor = new S3CacheJanitor(s3Client, CONFIG.awsBucket, cacheCodec, CONFIG.fhirCacheInHour, Duration.ofMinutes(CONFIG.cacheStaleGraceInMinutes),
+      CONFIG.cacheJanitorRequestsPerSecond, CONFIG.cacheJanitorBackups);
+    if (CONFIG.cacheJanitorIntervalInHour > 0) {
+      cacheJanitor.start(Duration.ofHours(CONFIG.cacheJanitorIntervalInHour));
+    }
+    final FhirClient fhirClient = new FhirClient(CONFIG.fhirUrl, 15000, 20, CONFIG.fhirConcurrency, CONFIG.fhirMaxUrlBytes, CONFIG.fhirHedging, CONFIG.fhirMissingCacheInMinutes, fhirCache);
     final AuthController authController = new AuthController(keycloakClient);
     final MetadataValidationService metadataValidationService = new MetadataValidationService();
     final FilesValidationService filesValidationService = new FilesValidationService();
-    final VCFsValidationService vcfsValidationService = new VCFsValidationService(CONFIG.awsBucket, s3Client);
-    final BatchController batchController = new BatchController(s3Client, CONFIG.awsBucket, metadataValidationService, filesValidationService, vcfsValidationService, objectMapper, fhirClient);
+    final VCFIntegrityScanner vcfScanner = new VCFIntegrityScanner(Runtime.getRuntime().availableProcessors());
+    final VCFsIndexService vcfsIndexService = new VCFsIndexService(CONFIG.awsBucket, s3Client, cacheCodec, cacheWriteBehind);
+    final VCFsValidationService vcfsValidationService = new VCFsValidationService(CONFIG.awsBucket, s3Client, cacheCodec, cacheWriteBehind, vcfScanner,
+      vcfsIndexService, CONFIG.vcfConcurrency, CONFIG.vcfDeepScanConcurrency);
+    final ChecksumsValidationService checksumsValidationService = new ChecksumsValidationService(CONFIG.awsBucket, s3Client, cacheCodec, cacheWriteBehind, CONFIG.checksumConcurrency);
+    final CRAMsValidationService cramsValidationService = new CRAMsValidationService(CONFIG.awsBucket, s3Client, cacheCodec, cacheWriteBehind, CONFIG.cramConcurrency);
+    final ReferenceDataService referenceDataService = new ReferenceDataService(fhirClient, TimeUnit.HOURS.toMillis(CONFIG.fhirCacheInHour));
+    final BatchController batchController = new BatchController(s3Client, CONFIG.awsBucket, metadataValidationService, filesValidationService, vcfsValidationService, checksumsValidationService, cramsValidationService, objectMapper, fhirClient, referenceDataService);
+    final MetricsHandler metricsHandler = new MetricsHandler(Map.of(
+      "fhir.chunks", fhirClient::getChunkerMetrics,
+      "fhir.resilience", fhirClient::getResilienceMetrics,
+      "fhir.referenceData", referenceDataService::getMetrics,
+      "fhir.cache", fhirCache::getMetrics,
+      "cache.janitor", cacheJanitor::getMetrics,
+      "cache.writeBehind", cacheWriteBehind::getMetrics,
+      "vcf.deepScan", vcfScanner::getMetrics,
+      "files.checksums", checksumsValidationService::getMetrics));
 
     var app = Javalin.create(conf -> {
         conf.useVirtualThreads = true;
@@ -81,6 +117,7 @@ public class App {
         }
       })
       .get(Routes.ACTUATOR_HEALTH, healthCheckHandler) /* health is public */
+      .get(Routes.ACTUATOR_METRICS, metricsHandler, SecurityHandler.Roles.clin_qlin_me)
       .get(Routes.AUTH_LOGIN, authController::login, SecurityHandler.Roles.anonymous)
       .get(Routes.BATCH, batchController::batchRead, SecurityHandler.Roles.clin_qlin_me)
       .post(Routes.BATCH, batchController::batchCreateUpdate, SecurityHandler.Roles.clin_qlin_me)
@@ -89,7 +126,12 @@ public class App {
       .get(Routes.BATCH_HISTORY_BY_VERSION, batchController::batchHistoryByVersion, SecurityHandler.Roles.clin_qlin_me)
       .start(CONFIG.port);
 
-    Runtime.getRuntime().addShutdownHook(new Thread(app::stop));
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      app.stop();
+      cacheJanitor.close();
+      cacheWriteBehind.close();  // after the last request
+      vcfScanner.close();
+    }));
   }
 
 
@@ -1,5 +1,6 @@
 package bio.ferlab.clin.qlinme;
 
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
 import ch.qos.logback.classic.Level;
 import org.slf4j.LoggerFactory;
 
@@ -22,6 +23,21 @@ public class Config {
 
   public final String fhirUrl = getEnv("FHIR_URL").orElse("https://fhir.qa.cqgc.hsj.rtss.qc.ca/fhir");
   public final Integer fhirCacheInHour = getEnv("FHIR_CACHE_IN_HOUR").map(Integer::parseInt).orElse(4);
+  public final CacheCodec.Format cacheCodec = getEnv("CACHE_CODEC").map(CacheCodec.Format::valueOf).orElse(CacheCodec.Format.JSON);  // SMILE_GZIP to opt-in
+  public final Integer cacheStaleGraceInMinutes = getEnv("CACHE_STALE_GRACE_IN_MINUTES").map(Integer::parseInt).orElse(60);
+  public final Integer cacheLocalMaxMB = getEnv("CACHE_LOCAL_MAX_MB").map(Integer::parseInt).orElse(64);
+  public final Integer cacheJanitorIntervalInHour = getEnv("CACHE_JANITOR_INTERVAL_IN_HOUR").map(Integer::parseInt).orElse(24);  // 0 = disabled
+  public final Integer cacheJanitorRequestsPerSecond = getEnv("CACHE_JANITOR_REQUESTS_PER_SECOND").map(Integer::parseInt).orElse(20);
+  public final boolean cacheJanitorBackups = getEnv("CACHE_JANITOR_BACKUPS").map(Boolean::parseBoolean).orElse(false);
+  public final Integer cacheWriteBehindCapacity = getEnv("CACHE_WRITE_BEHIND_CAPACITY").map(Integer::parseInt).orElse(10000);
+  public final Integer vcfConcurrency = getEnv("VCF_CONCURRENCY").map(Integer::parseInt).orElse(10);
+  public final Integer vcfDeepScanConcurrency = getEnv("VCF_DEEP_SCAN_CONCURRENCY").map(Integer::parseInt).orElse(2);
+  public final Integer cramConcurrency = getEnv("CRAM_CONCURRENCY").map(Integer::parseInt).orElse(10);
+  public final Integer checksumConcurrency = getEnv("CHECKSUM_CONCURRENCY").map(Integer::parseInt).orElse(4);
+  public final Integer fhirMissingCacheInMinutes = getEnv("FHIR_MISSING_CACHE_IN_MINUTES").map(Integer::parseInt).orElse(15);
+  public final Integer fhirConcurrency = getEnv("FHIR_CONCURRENCY").map(Integer::parseInt).orElse(10);
+  public final Integer fhirMaxUrlBytes = getEnv("FHIR_MAX_URL_BYTES").map(Integer::parseInt).orElse(4096);
+  public final boolean fhirHedging = getEnv("FHIR_HEDGING").map(Boolean::parseBoolean).orElse(false);
 
   public final boolean securityEnabled = getEnv("SECURITY_ENABLED").map(Boolean::parseBoolean).orElse(true);
   public final String securitySystem = getEnv("SECURITY_SYSTEM").orElse("clin-system");
@@ -1,38 +1,79 @@
 package bio.ferlab.clin.qlinme.cients;
 
 import bio.ferlab.clin.qlinme.model.Metadata;
+import bio.ferlab.clin.qlinme.utils.AdaptiveChunker;
 import bio.ferlab.clin.qlinme.utils.DateUtils;
+import bio.ferlab.clin.qlinme.utils.Resilience;
 import bio.ferlab.clin.qlinme.utils.S3TimedCache;
+import bio.ferlab.clin.qlinme.utils.SingleFlight;
+import bio.ferlab.clin.qlinme.utils.TaskScope;
 import bio.ferlab.clin.qlinme.utils.Utils;
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.context.PerformanceOptionsEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.google.common.collect.Lists;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.http.HttpHeaders;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.r4.model.*;
 
+import java.net.SocketTimeoutException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Slf4j
 public class FhirClient {
 
   private static final int FETCH_SIZE = 100;
-  private static final int CHUNKED_SIZE = 10;
+  private static final int CHUNKED_SIZE = 10;  // initial size, adapted per search type
+  private static final int MAX_CHUNKED_SIZE = 200;
+  private static final int URL_OVERHEAD_BYTES = 256; // resource, other params, _elements ...
   // https://www.notion.so/ferlab/e6a3033cd3634b0d8948e1e4fde833e5?v=1afe0ff37cc943aa8c1144e2bb1bc649
   private static final List<String> PANELS_TO_IGNORE = List.of("RGDI+", "SCID", "SHEMA", "SSOLID", "TRATU");
+  // _elements of every search, union of the primary and included resources fields we read
+  private static final String[] ORGANIZATION_ELEMENTS = {"id"};
+  private static final String[] TASK_ELEMENTS = {"groupIdentifier", "extension"};
+  private static final String[] SERVICE_REQUEST_ELEMENTS = {"identifier", "groupIdentifier", "focus"};
+  private static final String[] PATIENT_ELEMENTS = {"identifier", "managingOrganization", "name", "gender", "birthDate", "link"};
 
   private final FhirContext context;
   private final IGenericClient genericClient;
   private final S3TimedCache cache;
+  private final SingleFlight singleFlight = new SingleFlight();
+  private final Semaphore chunkPermits;
+  private final AtomicBoolean elementsSupported = new AtomicBoolean(true);
+  private final Map<String, AdaptiveChunker> chunkers = new ConcurrentHashMap<>();
+  private final Function<String, AdaptiveChunker> newChunker;
+  private final Resilience resilience;
+  private final Duration missingTtl;
 
-  public FhirClient(String url, int timeoutMs, int poolSize, S3TimedCache cache) {
+  public FhirClient(String url, int timeoutMs, int poolSize, int concurrency, int maxUrlBytes, boolean hedging, int missingCacheInMinutes, S3TimedCache cache) {
     this.cache = cache;
+    this.missingTtl = Duration.ofMinutes(missingCacheInMinutes);
+    // 3 attempts within the timeout, breaker opens for 30s after 5 consecutive server failures of the same search
+    this.resilience = new Resilience(3, 200, timeoutMs, 5, 30_000, hedging, FhirClient::isRetryable);
+    this.chunkPermits = new Semaphore(concurrency);
+    // grow while a chunk is answered well under the timeout
+    this.newChunker = type -> new AdaptiveChunker(CHUNKED_SIZE, MAX_CHUNKED_SIZE, maxUrlBytes - url.length() - URL_OVERHEAD_BYTES, timeoutMs / 10);
     context = FhirContext.forR4();
 
-    context.setPerformanceOptions(PerformanceOptionsEnum.DEFERRED_MODEL_SCANNING);
+    // no DEFERRED_MODEL_SCANNING, lazy scanning isn't safe when the first responses are parsed concurrently
+    List.of(Bundle.class, CodeSystem.class, Organization.class, Task.class, ServiceRequest.class, Patient.class, Person.class)
+      .forEach(context::getResourceDefinition);
     context.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
 
     context.getRestfulClientFactory().setConnectTimeout(timeoutMs);
@@ -44,121 +85,305 @@ public class FhirClient {
     this.genericClient = context.newRestfulGenericClient(url);
   }
 
-  public synchronized List<String> getPanelCodes(String rpt, boolean allowCache) {
-    return cache.get("fhir.panels", new TypeReference<List<String>>() { }).filter(c -> allowCache).orElseGet(() -> {
-      var response = this.genericClient.read().resource(CodeSystem.class).withId("analysis-request-code").withAdditionalHeader(HttpHeaders.AUTHORIZATION, rpt).execute();
+  public List<String> getPanelCodes(String rpt, boolean allowCache) {
+    return singleFlight.execute("panels." + allowCache, () -> fetchPanelCodes(rpt, allowCache));
+  }
+
+  private List<String> fetchPanelCodes(String rpt, boolean allowCache) {
+    return cache.getOrRefresh("fhir.panels", new TypeReference<List<String>>() { }, allowCache, () -> {
+      var response = resilience.call("panels", () -> this.genericClient.read().resource(CodeSystem.class).withId("analysis-request-code").withAdditionalHeader(HttpHeaders.AUTHORIZATION, rpt).execute());
       var values = response.getConcept().stream().map(CodeSystem.ConceptDefinitionComponent::getCode)
         .filter(c -> !PANELS_TO_IGNORE.contains(c)).sorted().toList();
       log.info("Fetched panels: {}", values);
-      return cache.put("fhir.panels", values);
+      return values;
     });
   }
 
-  public synchronized List<String> getOrganizations(String rpt, boolean allowCache) {
-    return cache.get("fhir.organizations",  new TypeReference<List<String>>() { }).filter(c -> allowCache).orElseGet(() -> {
-      var response = this.genericClient.search().forResource(Organization.class).count(FETCH_SIZE).returnBundle(Bundle.class).withAdditionalHeader(HttpHeaders.AUTHORIZATION, rpt).execute();
-      var values = response.getEntry().stream().map(e -> (Organization)e.getResource()).map(o -> o.getIdElement().getIdPart()).sorted().toList();
+  public List<String> getOrganizations(String rpt, boolean allowCache) {
+    return singleFlight.execute("organizations." + allowCache, () -> fetchOrganizations(rpt, allowCache));
+  }
+
+  private List<String> fetchOrganizations(String rpt, boolean allowCache) {
+    return cache.getOrRefresh("fhir.organizations", new TypeReference<List<String>>() { }, allowCache, () -> {
+      var response = search("organizations", () -> this.genericClient.search().forResource(Organization.class).count(FETCH_SIZE).returnBundle(Bundle.class), rpt, ORGANIZATION_ELEMENTS);
+      var values = pages("organizations", response, rpt).flatMap(page -> page.getEntry().stream()).map(e -> (Organization)e.getResource()).map(o -> o.getIdElement().getIdPart()).sorted().toList();
       log.info("Fetched organizations: {}", values);
-      return cache.put("fhir.organizations", values);
+      return values;
     });
   }
 
-  public synchronized Map<String, List<String>> getAliquotIDsByBatch(String rpt, List<String> aliquotIDs, boolean allowCache) {
-    var chunkedIDs = Lists.partition(aliquotIDs, CHUNKED_SIZE);
-    var aliquotIDsByBatchID = new TreeMap<String, List<String>>();
-    chunkedIDs.forEach(ids -> {
-      var values = fetchTaskByAliquotIDs(rpt, ids, allowCache);
-      values.keySet().forEach(batchId -> {
-        aliquotIDsByBatchID.computeIfAbsent(batchId, k -> new ArrayList<>());
-        aliquotIDsByBatchID.get(batchId).addAll(values.get(batchId));
-      });
-    });
+  public Map<String, List<String>> getAliquotIDsByBatch(String rpt, List<String> aliquotIDs, boolean allowCache) {
+    return singleFlight.execute(flightKey("aliquotids", allowCache, aliquotIDs), () -> fetchAliquotIDsByBatch(rpt, aliquotIDs, allowCache));
+  }
+
+  private Map<String, List<String>> fetchAliquotIDsByBatch(String rpt, List<String> aliquotIDs, boolean allowCache) {
+    var batchIDsByAliquotID = fetchByIdentifiers("aliquotid", aliquotIDs, allowCache, new TypeReference<List<String>>() { },
+      ids -> fetchTaskByAliquotIDs(rpt, ids));
+    var aliquotIDsByBatchID = groupByBatchID(batchIDsByAliquotID);
     log.info("Found aliquot IDs: {}", aliquotIDsByBatchID.values().stream().flatMap(List::stream).toList().size());
     return aliquotIDsByBatchID;
   }
 
-  public synchronized Map<String, List<String>> getLdmServiceRequestId(String rpt, List<String> ldmServiceRequestIds, boolean allowCache) {
-    var chunkedIDs = Lists.partition(ldmServiceRequestIds, CHUNKED_SIZE);
-    var byBatchID = new TreeMap<String, List<String>>();
-    chunkedIDs.forEach(ids -> {
-      var values = fetchServiceRequestByIdentifiers(rpt, ids, allowCache);
-      values.keySet().forEach(batchId -> {
-        byBatchID.computeIfAbsent(batchId, k -> new ArrayList<>());
-        byBatchID.get(batchId).addAll(values.get(batchId));
-      });
-    });
+  public Map<String, List<String>> getLdmServiceRequestId(String rpt, List<String> ldmServiceRequestIds, boolean allowCache) {
+    return singleFlight.execute(flightKey("ldmServiceRequestIds", allowCache, ldmServiceRequestIds), () -> fetchLdmServiceRequestId(rpt, ldmServiceRequestIds, allowCache));
+  }
+
+  private Map<String, List<String>> fetchLdmServiceRequestId(String rpt, List<String> ldmServiceRequestIds, boolean allowCache) {
+    var batchIDsByIdentifier = fetchByIdentifiers("ldmServiceRequestId", ldmServiceRequestIds, allowCache, new TypeReference<List<String>>() { },
+      ids -> fetchServiceRequestByIdentifiers(rpt, ids));
+    var byBatchID = groupByBatchID(batchIDsByIdentifier);
     log.info("Found ServiceRequest IDs: {}", byBatchID.values().stream().flatMap(List::stream).toList().size());
     return byBatchID;
   }
 
-  private Map<String, List<String>> fetchTaskByAliquotIDs(String rpt, List<String> aliquotIDs, boolean allowCache) {
-    if (aliquotIDs.isEmpty()) return new TreeMap<>();  // don't request fhir with empty query param
-    var cacheKey = "fhir.aliquotids."+String.join("_", aliquotIDs);
-    return cache.get(cacheKey,  new TypeReference<Map<String, List<String>>>() { }).filter(c -> allowCache).orElseGet(() -> {
-      var response = this.genericClient.search().byUrl("Task?aliquotid=" + Utils.encodeURL(String.join(",", aliquotIDs))).count(aliquotIDs.size()).returnBundle(Bundle.class).withAdditionalHeader(HttpHeaders.AUTHORIZATION, rpt).execute();
-      var aliquotIDsByBatchID = new TreeMap<String, List<String>>();
-      response.getEntry().stream().map(e -> (Task)e.getResource())
-        .forEach(t -> {
-          var batchId  = t.getGroupIdentifier().getValue();
-          var aliquotID = t.getExtensionByUrl("http://fhir.cqgc.ferlab.bio/StructureDefinition/sequencing-experiment").getExtensionByUrl("labAliquotId").getValue().toString();
-          aliquotIDsByBatchID.computeIfAbsent(batchId, k -> new ArrayList<>());
-          aliquotIDsByBatchID.get(batchId).add(aliquotID);
-        });
-      log.debug("Fetch aliquot IDs: {}", aliquotIDsByBatchID.values().stream().flatMap(List::stream).toList().size());
-      return cache.put(cacheKey, aliquotIDsByBatchID);
-    });
+  private Map<String, List<String>> fetchTaskByAliquotIDs(String rpt, List<String> aliquotIDs) {
+    var response = search("aliquotid", () -> this.genericClient.search().byUrl("Task?aliquotid=" + Utils.encodeURL(String.join(",", aliquotIDs))).count(aliquotIDs.size()).returnBundle(Bundle.class), rpt, TASK_ELEMENTS);
+    var batchIDsByAliquotID = new HashMap<String, List<String>>();
+    pages("aliquotid", response, rpt).flatMap(page -> page.getEntry().stream()).map(e -> (Task)e.getResource())
+      .forEach(t -> {
+        var batchId  = t.getGroupIdentifier().getValue();
+        var aliquotID = t.getExtensionByUrl("http://fhir.cqgc.ferlab.bio/StructureDefinition/sequencing-experiment").getExtensionByUrl("labAliquotId").getValue().toString();
+        batchIDsByAliquotID.computeIfAbsent(aliquotID, k -> new ArrayList<>());
+        batchIDsByAliquotID.get(aliquotID).add(batchId);
+      });
+    log.debug("Fetch aliquot IDs: {}", batchIDsByAliquotID.size());
+    return batchIDsByAliquotID;
   }
 
-  private Map<String, List<String>> fetchServiceRequestByIdentifiers(String rpt, List<String> ldmServiceRequestIds, boolean allowCache) {
-    if (ldmServiceRequestIds.isEmpty()) return new TreeMap<>();  // don't request fhir with empty query param
-    var cacheKey = "fhir.ldmServiceRequestIds."+String.join("_", ldmServiceRequestIds);
-    return cache.get(cacheKey,  new TypeReference<Map<String, List<String>>>() { }).filter(c -> allowCache).orElseGet(() -> {
-      var response = this.genericClient.search().byUrl("ServiceRequest?identifier=" + Utils.encodeURL(String.join(",", ldmServiceRequestIds)))
-        .count(ldmServiceRequestIds.size()).revInclude(Task.INCLUDE_FOCUS).returnBundle(Bundle.class).withAdditionalHeader(HttpHeaders.AUTHORIZATION, rpt).execute();
-      var byBatchID = new TreeMap<String, List<String>>();
-      response.getEntry().forEach(e -> {
-        if (e.getResource() instanceof Task t) {
-          var focus = t.getFocus().getReference();
-          var sr = response.getEntry().stream().filter(e2 -> e2.getResource() instanceof ServiceRequest s && ("ServiceRequest/"+s.getIdElement().getIdPart()).equals(focus)).map(e2 -> (ServiceRequest)e2.getResource()).findFirst().orElse(new ServiceRequest());
-          var batchId  = t.getGroupIdentifier().getValue();
-          byBatchID.computeIfAbsent(batchId, k -> new ArrayList<>());
-          byBatchID.get(batchId).add(sr.getIdentifierFirstRep().getValue());
-        }
-      });
-      log.debug("Fetch ServiceRequest IDs: {}", byBatchID.values().stream().flatMap(List::stream).toList().size());
-      return cache.put(cacheKey, byBatchID);
-    });
+  private Map<String, List<String>> fetchServiceRequestByIdentifiers(String rpt, List<String> ldmServiceRequestIds) {
+    var response = search("ldmServiceRequestId", () -> this.genericClient.search().byUrl("ServiceRequest?identifier=" + Utils.encodeURL(String.join(",", ldmServiceRequestIds)))
+      .count(ldmServiceRequestIds.size()).revInclude(Task.INCLUDE_FOCUS).returnBundle(Bundle.class), rpt, SERVICE_REQUEST_ELEMENTS);
+    var batchIDsByIdentifier = new HashMap<String, List<String>>();
+    // rev-included Tasks are returned in the same page as their ServiceRequest
+    pages("ldmServiceRequestId", response, rpt).forEach(page -> extractBatchIDsByIdentifier(page).forEach((identifier, batchIDs) -> {
+      batchIDsByIdentifier.computeIfAbsent(identifier, k -> new ArrayList<>());
+      batchIDsByIdentifier.get(identifier).addAll(batchIDs);
+    }));
+    log.debug("Fetch ServiceRequest IDs: {}", batchIDsByIdentifier.size());
+    return batchIDsByIdentifier;
+  }
+
+  public List<Metadata.Patient> getPatients(String rpt, List<String> mrns, List<String> ramqs, boolean allowCache) {
+    return singleFlight.execute(flightKey("patients", allowCache, mrns) + "|" + String.join("_", ramqs), () -> fetchPatients(rpt, mrns, ramqs, allowCache));
   }
 
-  public synchronized List<Metadata.Patient> getPatients(String rpt, List<String> mrns, List<String> ramqs, boolean allowCache) {
-    var values = new ArrayList<>(Lists.partition(mrns, CHUNKED_SIZE).stream().map(ids -> fetchPatientOrPersonByIdentifier(rpt, "Patient", ids, allowCache)).flatMap(Collection::stream).toList());
+  private List<Metadata.Patient> fetchPatients(String rpt, List<String> mrns, List<String> ramqs, boolean allowCache) {
+    var values = new ArrayList<>(fetchByIdentifiers("patient", mrns, allowCache, new TypeReference<List<Metadata.Patient>>() { },
+      ids -> fetchPatientOrPersonByIdentifier(rpt, "Patient", ids, Metadata.Patient::mrn)).values().stream().flatMap(Collection::stream).toList());
     var ignoredAlreadyFound = ramqs.stream().filter(ramq -> values.stream().noneMatch(alreadyFound -> ramq.equals(alreadyFound.ramq()))).toList();
-    values.addAll(Lists.partition(ignoredAlreadyFound, CHUNKED_SIZE).stream().map(ids -> fetchPatientOrPersonByIdentifier(rpt, "Person", ids, allowCache)).flatMap(Collection::stream).toList());
+    values.addAll(fetchByIdentifiers("person", ignoredAlreadyFound, allowCache, new TypeReference<List<Metadata.Patient>>() { },
+      ids -> fetchPatientOrPersonByIdentifier(rpt, "Person", ids, Metadata.Patient::ramq)).values().stream().flatMap(Collection::stream).toList());
     log.info("Found patients: {}", values.size());
     return values;
   }
 
-  private List<Metadata.Patient> fetchPatientOrPersonByIdentifier(String rpt, String type, List<String> ids, boolean allowCache) {
-    if (ids.isEmpty()) return List.of();  // don't request fhir with empty query param
-    var cacheKey = "fhir."+type.toLowerCase()+"."+String.join("_", ids);
-    return cache.get(cacheKey,  new TypeReference<List<Metadata.Patient>>() { }).filter(c -> allowCache).orElseGet(() -> {
+  private Map<String, List<Metadata.Patient>> fetchPatientOrPersonByIdentifier(String rpt, String type, List<String> ids, Function<Metadata.Patient, String> identifier) {
+    var response = search(type.toLowerCase(), () -> {
       var query = this.genericClient.search().byUrl(type + "?identifier=" + Utils.encodeURL(String.join(",", ids)));
       if (type.equals("Patient")) {
         query = query.revInclude(Person.INCLUDE_PATIENT);
       }else if (type.equals("Person")) {
         query = query.include(Person.INCLUDE_PATIENT);
       }
-      var response = query.count(Integer.MAX_VALUE).returnBundle(Bundle.class).withAdditionalHeader(HttpHeaders.AUTHORIZATION, rpt).execute();
-      var patients = response.getEntry().stream().filter(e -> e.getResource() instanceof Patient).map(e -> (Patient) e.getResource()).toList();
-      var persons = response.getEntry().stream().filter(e -> e.getResource() instanceof Person).map(e -> (Person) e.getResource()).toList();
+      return query.count(FETCH_SIZE).returnBundle(Bundle.class);
+    }, rpt, PATIENT_ELEMENTS);
+    var patientsByIdentifier = new HashMap<String, List<Metadata.Patient>>();
+    // included Patient/Person are returned in the same page as the matching resource
+    pages(type.toLowerCase(), response, rpt).forEach(page -> {
+      var patients = page.getEntry().stream().filter(e -> e.getResource() instanceof Patient).map(e -> (Patient) e.getResource()).toList();
+      var persons = page.getEntry().stream().filter(e -> e.getResource() instanceof Person).map(e -> (Person) e.getResource()).toList();
       log.debug("Fetch patients: {}", patients.size());
-      return cache.put(cacheKey, extractPatientInfo(patients, persons));
+      extractPatientInfo(patients, persons).stream().filter(p -> identifier.apply(p) != null).forEach(p -> {
+        patientsByIdentifier.computeIfAbsent(identifier.apply(p), k -> new ArrayList<>());
+        patientsByIdentifier.get(identifier.apply(p)).add(p);
+      });
+    });
+    return patientsByIdentifier;
+  }
+
+  /**
+   * Cache is per identifier: known identifiers are read from cache, only the missing ones are requested to FHIR
+   * (in parallel chunks) and written back one entry per identifier. Identifiers not found in FHIR (new samples,
+   * not created yet) are cached in their own namespace with a shorter TTL, so they are found once created.
+   * A fetched identifier invalidates its entry of the other namespace, found then removed from FHIR isn't served.
+   * No lease here, a miss is fetched right away. Returned values keep the order of the distinct identifiers, blank
+   * identifiers are ignored.
+   */
+  private <V> Map<String, List<V>> fetchByIdentifiers(String type, List<String> ids, boolean allowCache, TypeReference<List<V>> valueType,
+                                                      Function<List<String>, Map<String, List<V>>> fetch) {
+    var distinctIDs = ids.stream().filter(StringUtils::isNotBlank).distinct().toList();
+    var values = allowCache ? readCached(type, distinctIDs, valueType) : new HashMap<String, List<V>>();
+    var fromCache = values.size();
+    var toFetchIDs = distinctIDs.stream().filter(id -> !values.containsKey(id)).toList();
+    values.putAll(fetchAndCache(type, toFetchIDs, fetch));
+    log.debug("Fetch {} from cache: {} from FHIR: {}", type, fromCache, toFetchIDs.size());
+    var ordered = new LinkedHashMap<String, List<V>>();
+    distinctIDs.forEach(id -> ordered.put(id, values.get(id)));
+    return ordered;
+  }
+
+  // cached values by identifier, empty for the known missing ones
+  private <V> Map<String, List<V>> readCached(String type, List<String> ids, TypeReference<List<V>> valueType) {
+    var values = new HashMap<String, List<V>>();
+    var cached = cache.getAll(ids.stream().map(id -> cacheKey(type, id)).toList(), valueType);
+    ids.forEach(id -> Optional.ofNullable(cached.get(cacheKey(type, id))).ifPresent(value -> values.put(id, value)));
+    var notCachedIDs = ids.stream().filter(id -> !values.containsKey(id)).toList();
+    var knownMissing = cache.getAll(notCachedIDs.stream().map(id -> missingKey(type, id)).toList(), valueType, missingTtl);
+    notCachedIDs.stream().filter(id -> knownMissing.containsKey(missingKey(type, id))).forEach(id -> values.put(id, List.of()));
+    return values;
+  }
+
+  private <V> Map<String, List<V>> fetchAndCache(String type, List<String> ids, Function<List<String>, Map<String, List<V>>> fetch) {
+    var fetched = new HashMap<String, List<V>>();
+    fetchChunks(type, ids, fetch).forEach(fetched::putAll);
+    var toCache = new HashMap<String, List<V>>();
+    var toCacheMissing = new HashMap<String, List<V>>();
+    var toInvalidate = new ArrayList<String>();
+    var values = new HashMap<String, List<V>>();
+    for (var id : ids) {
+      var value = fetched.getOrDefault(id, List.of());
+      if (value.isEmpty()) {
+        toCacheMissing.put(missingKey(type, id), value);
+        toInvalidate.add(cacheKey(type, id));
+      } else {
+        toCache.put(cacheKey(type, id), value);
+        toInvalidate.add(missingKey(type, id));
+      }
+      values.put(id, value);
+    }
+    cache.putAll(toCache);
+    cache.putAll(toCacheMissing, missingTtl);
+    cache.invalidateAll(toInvalidate);
+    return values;
+  }
+
+  private static String cacheKey(String type, String id) {
+    return "fhir." + type + "." + Utils.encodeURL(id);
+  }
+
+  private static String missingKey(String type, String id) {
+    return "fhir.missing." + type + "." + Utils.encodeURL(id);
+  }
+
+  private Map<String, List<String>> groupByBatchID(Map<String, List<String>> batchIDsByID) {
+    var idsByBatchID = new TreeMap<String, List<String>>();
+    batchIDsByID.forEach((id, batchIDs) -> batchIDs.forEach(batchId -> {
+      idsByBatchID.computeIfAbsent(batchId, k -> new ArrayList<>());
+      idsByBatchID.get(batchId).add(id);
+    }));
+    return idsByBatchID;
+  }
+
+  // only the elements we read are requested, a rejected search is sent again once without _elements, which is disabled
+  // only if the error is about it (a server ignoring _elements returns full resources, nothing to do)
+  private Bundle search(String type, Supplier<IQuery<Bundle>> query, String rpt, String... elements) {
+    if (elementsSupported.get()) {
+      try {
+        return resilience.call(type, () -> query.get().elementsSubset(elements).withAdditionalHeader(HttpHeaders.AUTHORIZATION, rpt).execute());
+      } catch (InvalidRequestException e) {
+        if (StringUtils.containsIgnoreCase(e.getMessage(), "_elements")) {
+          log.warn("FHIR search with _elements rejected, fallback to full resources: {}", e.getMessage());
+          elementsSupported.set(false);
+        } else {
+          log.warn("FHIR search with _elements rejected, retry without: {}", e.getMessage());
+        }
+      }
+    }
+    return resilience.call(type, () -> query.get().withAdditionalHeader(HttpHeaders.AUTHORIZATION, rpt).execute());
+  }
+
+  // follow Bundle.link[next] lazily, only the page being consumed is held in memory
+  private Stream<Bundle> pages(String type, Bundle first, String rpt) {
+    return Stream.iterate(first, Objects::nonNull, page -> page.getLink(IBaseBundle.LINK_NEXT) == null ? null
+      : resilience.call(type, () -> this.genericClient.loadPage().next(page).withAdditionalHeader(HttpHeaders.AUTHORIZATION, rpt).execute()));
+  }
+
+  // server side failures (timeout, unavailable, overloaded), a 4xx won't be better the next time
+  private static boolean isRetryable(RuntimeException e) {
+    return e instanceof FhirClientConnectionException
+      || (e instanceof BaseServerResponseException b && (b.getStatusCode() >= 500 || b.getStatusCode() == 429));
+  }
+
+  // chunks are fetched in parallel (capped by the client-wide permits), results are returned in chunks order
+  private <T> List<T> fetchChunks(String type, List<String> ids, Function<List<String>, T> fetch) {
+    if (ids.isEmpty()) return List.of();  // don't request fhir with empty query param
+    var chunker = chunkers.computeIfAbsent(type, newChunker);
+    var chunkedIDs = chunker.partition(ids);
+    if (chunkedIDs.size() <= 1) {
+      return chunkedIDs.stream().flatMap(chunk -> fetchChunk(chunker, chunk, fetch).stream()).toList();
+    }
+    try (var scope = new TaskScope(chunkPermits)) {
+      var results = chunkedIDs.stream().map(chunk -> scope.fork(() -> fetchChunk(chunker, chunk, fetch))).toList();
+      scope.join();
+      return results.stream().flatMap(r -> r.get().stream()).toList();
+    }
+  }
+
+  // a chunk too big for the server (414, read timeout) shrinks the chunker and is retried in two halves
+  private <T> List<T> fetchChunk(AdaptiveChunker chunker, List<String> chunk, Function<List<String>, T> fetch) {
+    var start = System.currentTimeMillis();
+    try {
+      var result = fetch.apply(chunk);
+      chunker.onSuccess(chunk.size(), System.currentTimeMillis() - start);
+      return List.of(result);
+    } catch (BaseServerResponseException e) {
+      if (!isChunkTooBig(e)) throw e;
+      chunker.onFailure(System.currentTimeMillis() - start);
+      if (chunk.size() <= 1) throw e;
+      log.warn("FHIR search of {} identifiers failed ({}), retry in smaller chunks", chunk.size(), e.getMessage());
+      var half = chunk.size() / 2;
+      var results = new ArrayList<>(fetchChunk(chunker, chunk.subList(0, half), fetch));
+      results.addAll(fetchChunk(chunker, chunk.subList(half, chunk.size()), fetch));
+      return results;
+    }
+  }
+
+  // URI too long, or no response in time once the retries are exhausted, other failures aren't about the chunk size
+  private static boolean isChunkTooBig(BaseServerResponseException e) {
+    return e.getStatusCode() == 414 || (e instanceof FhirClientConnectionException
+      && ExceptionUtils.indexOfType(e, SocketTimeoutException.class) >= 0 && ExceptionUtils.indexOfType(e, ConnectTimeoutException.class) < 0);
+  }
+
+  public Map<String, Object> getResilienceMetrics() {
+    return resilience.metrics();
+  }
+
+  public Map<String, AdaptiveChunker.Metrics> getChunkerMetrics() {
+    return new TreeMap<>(chunkers.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().metrics())));
+  }
+
+  private String flightKey(String type, boolean allowCache, List<String> ids) {
+    return type + "." + allowCache + "." + String.join("_", ids);
+  }
+
+  // ServiceRequests are indexed by reference once, joining Tasks to their focus is linear with the page size
+  static Map<String, List<String>> extractBatchIDsByIdentifier(Bundle page) {
+    var serviceRequests = new HashMap<String, ServiceRequest>();
+    page.getEntry().forEach(e -> {
+      if (e.getResource() instanceof ServiceRequest s) {
+        serviceRequests.putIfAbsent("ServiceRequest/" + s.getIdElement().getIdPart(), s);
+      }
+    });
+    var batchIDsByIdentifier = new HashMap<String, List<String>>();
+    page.getEntry().forEach(e -> {
+      if (e.getResource() instanceof Task t) {
+        var sr = serviceRequests.getOrDefault(t.getFocus().getReference(), new ServiceRequest());
+        var batchId  = t.getGroupIdentifier().getValue();
+        var identifier = sr.getIdentifierFirstRep().getValue();
+        if (StringUtils.isBlank(identifier)) return;  // can't be matched to a requested identifier
+        batchIDsByIdentifier.computeIfAbsent(identifier, k -> new ArrayList<>());
+        batchIDsByIdentifier.get(identifier).add(batchId);
+      }
     });
+    return batchIDsByIdentifier;
   }
 
-  private List<Metadata.Patient> extractPatientInfo(List<Patient> patients, List<Person> persons) {
+  // Persons are indexed by their linked Patient once, joining is linear with the page size
+  static List<Metadata.Patient> extractPatientInfo(List<Patient> patients, List<Person> persons) {
+    var personsByPatient = new HashMap<String, Person>();
+    persons.forEach(p -> p.getLink().forEach(l -> personsByPatient.putIfAbsent(l.getTarget().getReference(), p)));
     return patients.stream().map(patient -> {
-      var person = persons.stream().filter(p -> p.getLink().stream().anyMatch(l -> l.getTarget().getReference().equals("Patient/" + patient.getIdElement().getIdPart()))).findFirst().orElse(new Person());
+      var person = personsByPatient.getOrDefault("Patient/" + patient.getIdElement().getIdPart(), new Person());
       return new Metadata.Patient(
         Optional.ofNullable(person.getNameFirstRep()).map(HumanName::getGivenAsSingleString).orElse(null),
         Optional.ofNullable(person.getNameFirstRep()).map(HumanName::getFamily).orElse(null),
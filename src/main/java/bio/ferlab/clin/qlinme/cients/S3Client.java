@@ -1,10 +1,12 @@
 package bio.ferlab.clin.qlinme.cients;
 
+import bio.ferlab.clin.qlinme.model.BatchFile;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
@@ -14,16 +16,25 @@ import software.amazon.awssdk.services.s3.model.*;
 import java.io.IOException;
 import java.net.URI;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
 @Slf4j
 public class S3Client {
 
   private static final int MAX_KEYS = 1000;
-  private static final String BACKUP_FOLDER = ".backup";
+  public static final String BACKUP_FOLDER = ".backup";
   public static final String CACHE_FOLDER = ".cache";
+  public static final String VCFS_MANIFEST = "vcfs.manifest";
+  public static final String CHECKSUMS_MANIFEST = "checksums.manifest";
+  public static final String CRAMS_MANIFEST = "crams.manifest";
+  public static final String VCFS_INDEX = "vcfs.index";
+  public static final String MD5SUM_EXTENSION = ".md5sum";
+  // conditional requests answers, not in the SDK HttpStatusCode
+  public static final int NOT_MODIFIED = 304;
+  public static final int CONFLICT = 409;
+  public static final int PRECONDITION_FAILED = 412;
 
   @Getter
   private final software.amazon.awssdk.services.s3.S3Client s3Client;
@@ -106,9 +117,32 @@ public class S3Client {
     return readAndClose(bucket, backupKey);
   }
 
-  public byte[] getCachedVCFAliquotIDs(String bucket, String key, Instant lastModified) throws IOException {
-    var cachedKey = formatCachedVCFAliquotIDsKey(key, lastModified.toString());
-    return readAndClose(bucket, cachedKey);
+  // S3Exception 304 if still etag
+  public Optional<ResponseBytes<GetObjectResponse>> getVCFsIndex(String bucket, String etag) {
+    try {
+      return Optional.of(s3Client.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(formatVCFsIndexKey()).ifNoneMatch(etag).build()));
+    } catch (NoSuchKeyException e) {
+      return Optional.empty();
+    }
+  }
+
+  // atomic: fails (412) if the index changed since etag was read, or if created meanwhile when etag is null
+  public void putVCFsIndex(String bucket, byte[] index, String etag) {
+    var request = PutObjectRequest.builder().bucket(bucket).key(formatVCFsIndexKey())
+      .overrideConfiguration(o -> o.putHeader(etag != null ? "If-Match" : "If-None-Match", etag != null ? etag : "*")).build();
+    s3Client.putObject(request, RequestBody.fromBytes(index));
+  }
+
+  public Optional<ResponseBytes<GetObjectResponse>> getManifest(String bucket, String key) {
+    try {
+      return Optional.of(s3Client.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(key).build()));
+    } catch (NoSuchKeyException e) {
+      return Optional.empty();
+    }
+  }
+
+  public void putManifest(String bucket, String key, byte[] manifest) {
+    s3Client.putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(), RequestBody.fromBytes(manifest));
   }
 
   private byte[] readAndClose(String bucket, String key) throws IOException {
@@ -119,26 +153,40 @@ public class S3Client {
     return data;
   }
 
-  public void setCachedVCFAliquotIDs(String bucket, String key, Instant lastModified, List<String> ids) throws IOException {
-    var backupKey = formatCachedVCFAliquotIDsKey(key, lastModified.toString());
-    var request = PutObjectRequest.builder().bucket(bucket).key(backupKey).build();
-    s3Client.putObject(request, RequestBody.fromString(String.join(",", ids)));
+  public static String formatVCFsManifestKey(String batchId) {
+    return CACHE_FOLDER+"/"+batchId+"/"+VCFS_MANIFEST;
   }
 
-  private String formatCachedVCFAliquotIDsKey(String key, String lastModified) {
-    return CACHE_FOLDER+"/"+key+"."+lastModified+".aliquots";
+  public static String formatChecksumsManifestKey(String batchId) {
+    return CACHE_FOLDER+"/"+batchId+"/"+CHECKSUMS_MANIFEST;
+  }
+
+  public static String formatCRAMsManifestKey(String batchId) {
+    return CACHE_FOLDER+"/"+batchId+"/"+CRAMS_MANIFEST;
+  }
+
+  public static String formatVCFsIndexKey() {
+    return CACHE_FOLDER+"/"+VCFS_INDEX;
+  }
+
+  // the listing already has the size, ETag and last modified of every file, no HEAD needed
+  public List<BatchFile> listBatchObjects(String bucket, String batchId) {
+    return listObjects(bucket, batchId).stream()
+      .map(o -> new BatchFile(o.key().replace(batchId+"/", ""), o.key(), o.size(), o.eTag(), o.lastModified()))
+      .filter(f -> StringUtils.isNotBlank(f.name()))
+      .toList();
   }
 
-  public List<String> listBatchFiles(String bucket, String batchId) {
-    return listObjects(bucket, batchId).stream().map(o -> o.key().replace(batchId+"/", ""))
-      .filter(StringUtils::isNotBlank)
-      .filter(f -> !f.equals("_SUCCESS"))
-      .filter(f -> !f.endsWith(".md5sum"))
-      .filter(f -> !f.equals("metadata.json"))
-      .filter(f -> !f.endsWith(".extra_results.tgz"))
-      .filter(f -> !f.endsWith(".hpo"))
-      .filter(f -> !f.startsWith("logs/"))
-      .filter(f -> !f.toLowerCase().endsWith(".norm.vep.vcf.gz.tbi"))
+  // the files to validate against the metadata
+  public static List<BatchFile> filterBatchFiles(List<BatchFile> objects) {
+    return objects.stream()
+      .filter(f -> !f.name().equals("_SUCCESS"))
+      .filter(f -> !f.name().endsWith(MD5SUM_EXTENSION))
+      .filter(f -> !f.name().equals("metadata.json"))
+      .filter(f -> !f.name().endsWith(".extra_results.tgz"))
+      .filter(f -> !f.name().endsWith(".hpo"))
+      .filter(f -> !f.name().startsWith("logs/"))
+      .filter(f -> !f.name().toLowerCase().endsWith(".norm.vep.vcf.gz.tbi"))
       .toList();
   }
 
@@ -3,13 +3,19 @@ package bio.ferlab.clin.qlinme.controllers;
 import bio.ferlab.clin.qlinme.Routes;
 import bio.ferlab.clin.qlinme.cients.FhirClient;
 import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.BatchFile;
 import bio.ferlab.clin.qlinme.model.BatchStatus;
 import bio.ferlab.clin.qlinme.model.Metadata;
 import bio.ferlab.clin.qlinme.model.MetadataHistory;
 import bio.ferlab.clin.qlinme.model.MetadataValidation;
+import bio.ferlab.clin.qlinme.model.VCFsValidation;
+import bio.ferlab.clin.qlinme.services.CRAMsValidationService;
+import bio.ferlab.clin.qlinme.services.ChecksumsValidationService;
 import bio.ferlab.clin.qlinme.services.FilesValidationService;
 import bio.ferlab.clin.qlinme.services.MetadataValidationService;
+import bio.ferlab.clin.qlinme.services.ReferenceDataService;
 import bio.ferlab.clin.qlinme.services.VCFsValidationService;
+import bio.ferlab.clin.qlinme.utils.TaskScope;
 import bio.ferlab.clin.qlinme.utils.Utils;
 import io.javalin.http.ContentType;
 import io.javalin.http.Context;
@@ -32,8 +38,11 @@ public class BatchController {
   private final MetadataValidationService metadataValidationService;
   private final FilesValidationService filesValidationService;
   private final VCFsValidationService vcFsValidationService;
+  private final ChecksumsValidationService checksumsValidationService;
+  private final CRAMsValidationService cramsValidationService;
   private final JavalinJackson objectMapper;
   private final FhirClient fhirClient;
+  private final ReferenceDataService referenceDataService;
 
   @OpenApi(
     summary = "Get current metadata",
@@ -103,12 +112,20 @@ public class BatchController {
 
   private MetadataValidation validate(Context ctx, Metadata metadata, String batchId, boolean allowCache) {
     var rpt = ctx.header(HttpHeaders.AUTHORIZATION);
-    return metadataValidationService.validateMetadata(metadata, batchId,
-      fhirClient.getPanelCodes(rpt, allowCache),
-      fhirClient.getOrganizations(rpt, allowCache),
-      fhirClient.getAliquotIDsByBatch(rpt, metadataValidationService.extractAliquotIDs(metadata), allowCache),
-      fhirClient.getLdmServiceRequestId(rpt, metadataValidationService.extractLdmServiceRequestId(metadata), allowCache),
-      fhirClient.getPatients(rpt, metadataValidationService.extractMRNs(metadata), metadataValidationService.extractRAMQs(metadata), allowCache));
+    var aliquotIDs = metadataValidationService.extractAliquotIDs(metadata);
+    var ldmServiceRequestIds = metadataValidationService.extractLdmServiceRequestId(metadata);
+    var mrns = metadataValidationService.extractMRNs(metadata);
+    var ramqs = metadataValidationService.extractRAMQs(metadata);
+    // independent lookups, the request waits for the slowest one instead of their sum
+    try (var scope = new TaskScope()) {
+      var referenceData = scope.fork(() -> referenceDataService.get(rpt, allowCache));
+      var aliquotIDsByBatch = scope.fork(() -> fhirClient.getAliquotIDsByBatch(rpt, aliquotIDs, allowCache));
+      var ldmServiceRequestsByBatch = scope.fork(() -> fhirClient.getLdmServiceRequestId(rpt, ldmServiceRequestIds, allowCache));
+      var patients = scope.fork(() -> fhirClient.getPatients(rpt, mrns, ramqs, allowCache));
+      scope.join();
+      return metadataValidationService.validateMetadata(metadata, batchId, referenceData.get(),
+        aliquotIDsByBatch.get(), ldmServiceRequestsByBatch.get(), patients.get());
+    }
   }
 
   private void validateAndCreateMetadata(Context ctx, Metadata metadata, String batchId, boolean save, boolean allowCache) {
@@ -144,6 +161,10 @@ public class BatchController {
     pathParams = {
       @OpenApiParam(name = "batch_id", required = true, description = "Should match the batch folder name in S3"),
     },
+    queryParams = {
+      @OpenApiParam(name = "deep-scan", type = Boolean.class, allowEmptyValue = true, description = "Optional, read the whole VCFs to detect truncated or corrupted files (slow)", example = "<empty>|true"),
+      @OpenApiParam(name = "verify-checksums", type = Boolean.class, allowEmptyValue = true, description = "Optional, compare the files with their .md5sum (slow the first time)", example = "<empty>|true"),
+    },
     responses = {
       @OpenApiResponse(status = "200", content = @OpenApiContent(from = BatchStatus.class)),
       @OpenApiResponse(status = "403", description = "Bearer token is missing or invalid"),
@@ -153,12 +174,28 @@ public class BatchController {
   public void batchStatus(Context ctx) {
     var batchId = Utils.getValidParamParam(ctx, "batch_id").get();
     var allowCache = !"no-cache".equals(ctx.header(HttpHeaders.CACHE_CONTROL));
+    var deepScan = List.of("", "true").contains(String.valueOf(ctx.queryParam("deep-scan")));
+    var verifyChecksums = List.of("", "true").contains(String.valueOf(ctx.queryParam("verify-checksums")));
     try {
       var metadata = objectMapper.getMapper().readValue(s3Client.getMetadata(metadataBucket, batchId), Metadata.class);
       var metadataValidation = validate(ctx, metadata, batchId, allowCache);
-      var s3Files = s3Client.listBatchFiles(metadataBucket, batchId);
-      var filesValidation = filesValidationService.validateFiles(metadata, s3Files);
-      var vcfsValidation = vcFsValidationService.validate(metadata, batchId, s3Files, allowCache);
+      var s3Objects = s3Client.listBatchObjects(metadataBucket, batchId);
+      var s3Files = S3Client.filterBatchFiles(s3Objects);
+      var filesValidation = filesValidationService.validateFiles(metadata, s3Files.stream().map(BatchFile::name).toList());
+      VCFsValidation vcfsValidation;
+      // headers of the VCFs and of the CRAMs read at the same time
+      try (var scope = new TaskScope()) {
+        var vcfs = scope.fork(() -> vcFsValidationService.validate(metadata, batchId, s3Files, allowCache, deepScan));
+        scope.fork(() -> {
+          cramsValidationService.validate(metadata, batchId, s3Files, allowCache, filesValidation);
+          return null;
+        });
+        scope.join();
+        vcfsValidation = vcfs.get();
+      }
+      if (verifyChecksums) {
+        checksumsValidationService.validate(batchId, s3Objects, allowCache, filesValidation);
+      }
       var status = (metadataValidation.isValid() & filesValidation.isValid() & vcfsValidation.isValid()) ? "READY_TO_IMPORT" : "ERRORS";
       ctx.json(new BatchStatus(status, metadataValidation, filesValidation, vcfsValidation));
     } catch (NoSuchKeyException e) {
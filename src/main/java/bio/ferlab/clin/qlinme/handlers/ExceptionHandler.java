@@ -1,11 +1,13 @@
 package bio.ferlab.clin.qlinme.handlers;
 
+import bio.ferlab.clin.qlinme.utils.CircuitBreaker;
 import com.fasterxml.jackson.databind.exc.InvalidFormatException;
 import io.javalin.http.Context;
 import io.javalin.http.HttpResponseException;
 import io.javalin.http.HttpStatus;
 import io.javalin.validation.ValidationException;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 
 @Slf4j
 public class ExceptionHandler {
@@ -18,6 +20,9 @@ public class ExceptionHandler {
       ctx.status(re.getStatus()).result(re.getMessage());
     } else if (e instanceof InvalidFormatException re) {
       ctx.status(HttpStatus.BAD_REQUEST).result(re.getMessage());
+    } else if (ExceptionUtils.indexOfType(e, CircuitBreaker.OpenException.class) >= 0) {
+      log.warn(e.getMessage());
+      ctx.status(HttpStatus.SERVICE_UNAVAILABLE).result("service unavailable, retry later");
     } else {
       log.error("", e);
       ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).result("internal server error");
@@ -0,0 +1,24 @@
+package bio.ferlab.clin.qlinme.handlers;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+@RequiredArgsConstructor
+public class MetricsHandler implements Handler {
+
+  private final Map<String, Supplier<Object>> metrics;
+
+  @Override
+  public void handle(@NotNull Context ctx) {
+    var values = new TreeMap<String, Object>();
+    metrics.forEach((name, metric) -> values.put(name, metric.get()));
+    ctx.json(values);
+  }
+
+}
@@ -0,0 +1,7 @@
+package bio.ferlab.clin.qlinme.model;
+
+import java.time.Instant;
+
+// a file of a batch as listed in S3, name is relative to the batch folder
+public record BatchFile(String name, String key, long size, String etag, Instant lastModified) {
+}
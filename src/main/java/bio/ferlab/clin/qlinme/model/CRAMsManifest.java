@@ -0,0 +1,11 @@
+package bio.ferlab.clin.qlinme.model;
+
+import java.util.List;
+import java.util.Map;
+
+// @RG samples of every CRAM of a batch, by CRAM name, valid as long as the CRAM ETag is the same
+public record CRAMsManifest(Map<String, CRAM> crams) {
+
+  public record CRAM(String etag, List<String> samples) {
+  }
+}
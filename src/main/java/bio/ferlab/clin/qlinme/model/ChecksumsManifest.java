@@ -0,0 +1,10 @@
+package bio.ferlab.clin.qlinme.model;
+
+import java.util.Map;
+
+// md5 of the files of a batch, by file name, valid as long as the file ETag is the same
+public record ChecksumsManifest(Map<String, Checksum> files) {
+
+  public record Checksum(String etag, String md5) {
+  }
+}
@@ -12,11 +12,16 @@ public class FilesValidation {
   @Setter
   private int count = 0;
   private final List<String> errors = new ArrayList<>();
+  private final List<String> warnings = new ArrayList<>();
 
   public void addError(String error) {
     errors.add(error);
   }
 
+  public void addWarning(String warning) {
+    warnings.add(warning);
+  }
+
   @JsonIgnore
   @OpenApiIgnore
   public boolean isValid() {
@@ -31,4 +36,7 @@ public class FilesValidation {
     return errors;
   }
 
+  public List<String> getWarnings() {
+    return warnings;
+  }
 }
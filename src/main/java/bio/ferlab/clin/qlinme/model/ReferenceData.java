@@ -0,0 +1,13 @@
+package bio.ferlab.clin.qlinme.model;
+
+import java.util.List;
+
+public record ReferenceData(List<String> panelCodes, List<String> ldms, List<String> eps, long fetchedAt) {
+
+  public static ReferenceData of(List<String> panelCodes, List<String> organizations) {
+    return new ReferenceData(List.copyOf(panelCodes),
+      organizations.stream().filter(o -> o.startsWith("LDM")).toList(),
+      organizations.stream().filter(o -> !o.startsWith("LDM")).toList(),
+      System.currentTimeMillis());
+  }
+}
@@ -0,0 +1,11 @@
+package bio.ferlab.clin.qlinme.model;
+
+import java.util.List;
+import java.util.Map;
+
+// every VCF of every batch where an aliquot ID is found, by aliquot ID
+public record VCFsIndex(Map<String, List<Location>> aliquots) {
+
+  public record Location(String batchId, String vcf, String etag) {
+  }
+}
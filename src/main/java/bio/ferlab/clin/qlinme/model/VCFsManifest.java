@@ -0,0 +1,11 @@
+package bio.ferlab.clin.qlinme.model;
+
+import java.util.List;
+import java.util.Map;
+
+// aliquot IDs of every VCF of a batch, by VCF name, valid as long as the VCF ETag is the same
+public record VCFsManifest(Map<String, VCF> vcfs) {
+
+  public record VCF(String etag, List<String> aliquotIDs) {
+  }
+}
@@ -0,0 +1,54 @@
+package bio.ferlab.clin.qlinme.services;
+
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
+import bio.ferlab.clin.qlinme.utils.WriteBehind;
+import com.fasterxml.jackson.core.type.TypeReference;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.function.Function;
+
+/**
+ * A manifest by batch in .cache (what was read from the files of the batch, by file ETag). Missing or unreadable is
+ * empty, the entries are rebuilt from the files. Written in background by a plain PUT: every validation rebuilds the
+ * whole manifest from the same batch files, the last one written wins.
+ */
+@Slf4j
+class BatchManifestStore<M> {
+
+  private final String name;
+  private final String bucket;
+  private final S3Client s3Client;
+  private final CacheCodec codec;
+  private final WriteBehind writeBehind;
+  private final Function<String, String> keyOf;
+  private final TypeReference<M> type;
+  private final M empty;
+
+  BatchManifestStore(String name, String bucket, S3Client s3Client, CacheCodec codec, WriteBehind writeBehind,
+                     Function<String, String> keyOf, TypeReference<M> type, M empty) {
+    this.name = name;
+    this.bucket = bucket;
+    this.s3Client = s3Client;
+    this.codec = codec;
+    this.writeBehind = writeBehind;
+    this.keyOf = keyOf;
+    this.type = type;
+    this.empty = empty;
+  }
+
+  M read(String batchId) {
+    try {
+      return s3Client.getManifest(bucket, keyOf.apply(batchId)).map(r -> codec.decode(r.asByteArray(), type)).orElse(empty);
+    } catch (Exception e) {
+      log.warn("Ignore {} manifest of: {} cause: {}", name, batchId, e.getMessage());
+      return empty;
+    }
+  }
+
+  void write(String batchId, M manifest) {
+    var key = keyOf.apply(batchId);
+    var data = codec.encode(manifest);
+    writeBehind.submit(key, () -> s3Client.putManifest(bucket, key, data));
+  }
+}
@@ -0,0 +1,97 @@
+package bio.ferlab.clin.qlinme.services;
+
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.BatchFile;
+import bio.ferlab.clin.qlinme.model.CRAMsManifest;
+import bio.ferlab.clin.qlinme.model.FilesValidation;
+import bio.ferlab.clin.qlinme.model.Metadata;
+import bio.ferlab.clin.qlinme.utils.CRAMHeaderReader;
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
+import bio.ferlab.clin.qlinme.utils.TaskScope;
+import bio.ferlab.clin.qlinme.utils.WriteBehind;
+import com.fasterxml.jackson.core.type.TypeReference;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// the @RG SM of every CRAM has to be the labAliquotId of its analysis
+@Slf4j
+public class CRAMsValidationService {
+
+  private final String bucket;
+  private final S3Client s3Client;
+  private final BatchManifestStore<CRAMsManifest> manifests;
+  private final Semaphore permits;  // shared by every request, limits the concurrent S3 reads
+
+  public CRAMsValidationService(String bucket, S3Client s3Client, CacheCodec codec, WriteBehind writeBehind, int concurrency) {
+    this.bucket = bucket;
+    this.s3Client = s3Client;
+    this.manifests = new BatchManifestStore<>("CRAMs", bucket, s3Client, codec, writeBehind, S3Client::formatCRAMsManifestKey, new TypeReference<>() { },
+      new CRAMsManifest(Map.of()));
+    this.permits = new Semaphore(concurrency);
+  }
+
+  private record Extraction(CRAMsManifest.CRAM cram, Exception error) {
+  }
+
+  public void validate(Metadata m, String batchId, List<BatchFile> files, boolean allowCache, FilesValidation validation) {
+    var byName = files.stream().collect(Collectors.toMap(BatchFile::name, Function.identity()));
+    var aliquotIDByCRAMs = new TreeMap<String, List<String>>();
+    if (m != null && m.analyses() != null) {
+      for (var ana : m.analyses()) {
+        var cram = ana.files() != null ? ana.files().get(MetadataValidationService.Files.cram.name()) : null;
+        if (StringUtils.isNoneBlank(cram, ana.labAliquotId()) && byName.containsKey(cram)) {
+          aliquotIDByCRAMs.computeIfAbsent(cram, c -> new ArrayList<>()).add(ana.labAliquotId());
+        }
+      }
+    }
+    var crams = new ArrayList<>(aliquotIDByCRAMs.keySet());
+    var known = allowCache ? manifests.read(batchId).crams() : Map.<String, CRAMsManifest.CRAM>of();
+    var current = new TreeMap<String, CRAMsManifest.CRAM>();
+    try (var scope = new TaskScope(permits)) {
+      var extractions = crams.stream().map(cram -> scope.fork(() -> {
+        try {
+          return new Extraction(extractSamples(byName.get(cram), known.get(cram)), null);
+        } catch (Exception e) {
+          return new Extraction(null, e);
+        }
+      })).toList();
+      scope.join();
+      for (int i = 0; i < crams.size(); i++) {
+        var cram = crams.get(i);
+        var extraction = extractions.get(i).get();
+        if (extraction.error() != null) {
+          log.warn("Failed to extract samples: {}/{}", batchId, cram, extraction.error());
+          validation.addError(cram + " can't be read: " + ExceptionUtils.getRootCause(extraction.error()).getMessage());
+          continue;
+        }
+        current.put(cram, extraction.cram());
+        var samples = extraction.cram().samples();
+        for (var aliquotID : aliquotIDByCRAMs.get(cram)) {
+          if (!samples.equals(List.of(aliquotID))) {
+            validation.addError(cram + " @RG SM: " + samples + " doesn't match labAliquotId: " + aliquotID);
+          }
+        }
+      }
+    }
+    if (!current.equals(known)) {
+      manifests.write(batchId, new CRAMsManifest(current));
+    }
+  }
+
+  private CRAMsManifest.CRAM extractSamples(BatchFile cram, CRAMsManifest.CRAM known) {
+    if (known != null && known.etag().equals(cram.etag())) {
+      return known;
+    }
+    // only the header, by ranges of the version we listed
+    var samples = CRAMHeaderReader.readSamples((offset, length) -> s3Client.getS3Client().getObjectAsBytes(GetObjectRequest.builder()
+      .bucket(bucket).key(cram.key()).range("bytes=" + offset + "-" + (offset + length - 1)).ifMatch(cram.etag()).build()).asByteArray(), cram.size());
+    log.info("Read CRAM samples: {} {}", cram.key(), cram.etag());
+    return new CRAMsManifest.CRAM(cram.etag(), samples);
+  }}
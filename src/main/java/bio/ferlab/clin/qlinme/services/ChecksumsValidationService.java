@@ -0,0 +1,162 @@
+package bio.ferlab.clin.qlinme.services;
+
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.BatchFile;
+import bio.ferlab.clin.qlinme.model.ChecksumsManifest;
+import bio.ferlab.clin.qlinme.model.FilesValidation;
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
+import bio.ferlab.clin.qlinme.utils.TaskScope;
+import bio.ferlab.clin.qlinme.utils.WriteBehind;
+import com.fasterxml.jackson.core.type.TypeReference;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Compare the files of a batch with their .md5sum sidecar. Every file is streamed once and hashed with a buffer from
+ * a pool (at most one per concurrent hash), the md5 is kept in a manifest by file ETag so an unchanged file is never
+ * hashed again, only compared with its (maybe new) sidecar.
+ */
+@Slf4j
+public class ChecksumsValidationService {
+
+  private static final int BUFFER_SIZE = 1024 * 1024;
+  private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(10);
+  private static final Pattern MD5 = Pattern.compile("^[0-9a-f]{32}$");
+
+  private final String bucket;
+  private final S3Client s3Client;
+  private final BatchManifestStore<ChecksumsManifest> manifests;
+  private final Semaphore permits;  // shared by every request, limits the concurrent hashes
+  private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+  private final AtomicLong files = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong hashedBytes = new AtomicLong();
+  private final AtomicLong hashMs = new AtomicLong();
+  private final AtomicLong remainingBytes = new AtomicLong();
+
+  public ChecksumsValidationService(String bucket, S3Client s3Client, CacheCodec codec, WriteBehind writeBehind, int concurrency) {
+    this.bucket = bucket;
+    this.s3Client = s3Client;
+    this.manifests = new BatchManifestStore<>("checksums", bucket, s3Client, codec, writeBehind, S3Client::formatChecksumsManifestKey, new TypeReference<>() { },
+      new ChecksumsManifest(Map.of()));
+    this.permits = new Semaphore(concurrency);
+  }
+
+  private record Verification(ChecksumsManifest.Checksum checksum, String expected, Exception error) {
+  }
+
+  // objects: the whole batch listing, with the sidecars
+  public void validate(String batchId, List<BatchFile> objects, boolean allowCache, FilesValidation validation) {
+    var byName = objects.stream().collect(Collectors.toMap(BatchFile::name, Function.identity()));
+    var verified = new ArrayList<BatchFile>();
+    objects.stream().map(BatchFile::name).filter(name -> name.endsWith(S3Client.MD5SUM_EXTENSION)).sorted().forEach(sidecar -> {
+      var file = sidecar.substring(0, sidecar.length() - S3Client.MD5SUM_EXTENSION.length());
+      if (byName.containsKey(file)) {
+        verified.add(byName.get(file));
+      } else {
+        validation.addWarning(sidecar + " found but " + file + " is missing");
+      }
+    });
+    var known = allowCache ? manifests.read(batchId).files() : Map.<String, ChecksumsManifest.Checksum>of();
+    var current = new TreeMap<String, ChecksumsManifest.Checksum>();
+    try (var scope = new TaskScope(permits)) {
+      var verifications = verified.stream().map(file -> scope.fork(() -> {
+        try {
+          var expected = readSidecar(byName.get(file.name() + S3Client.MD5SUM_EXTENSION));
+          return new Verification(checksum(file, known.get(file.name())), expected, null);
+        } catch (Exception e) {
+          return new Verification(null, null, e);
+        }
+      })).toList();
+      scope.join();
+      for (int i = 0; i < verified.size(); i++) {
+        var file = verified.get(i).name();
+        var verification = verifications.get(i).get();
+        if (verification.error() != null) {
+          log.warn("Failed to verify checksum: {}/{}", batchId, file, verification.error());
+          validation.addError(file + " checksum can't be verified: " + ExceptionUtils.getRootCause(verification.error()).getMessage());
+          continue;
+        }
+        current.put(file, verification.checksum());
+        if (!verification.checksum().md5().equals(verification.expected())) {
+          validation.addError(file + " checksum " + verification.checksum().md5() + " doesn't match " + file + S3Client.MD5SUM_EXTENSION + ": " + verification.expected());
+        }
+      }
+    }
+    if (!current.equals(known)) {
+      manifests.write(batchId, new ChecksumsManifest(current));
+    }
+  }
+
+  // md5sum format: "<md5>  <file name>", or only the md5
+  private String readSidecar(BatchFile sidecar) {
+    var content = s3Client.getS3Client().getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(sidecar.key()).build()).asString(StandardCharsets.UTF_8);
+    var md5 = content.strip().split("\\s+")[0].toLowerCase();
+    if (!MD5.matcher(md5).matches()) {
+      throw new IllegalStateException("Invalid " + sidecar.name());
+    }
+    return md5;
+  }
+
+  private ChecksumsManifest.Checksum checksum(BatchFile file, ChecksumsManifest.Checksum known) throws Exception {
+    files.incrementAndGet();
+    if (known != null && known.etag().equals(file.etag())) {
+      cacheHits.incrementAndGet();
+      return known;
+    }
+    var buffer = Optional.ofNullable(buffers.poll()).orElseGet(() -> new byte[BUFFER_SIZE]);
+    var start = System.currentTimeMillis();
+    var nextProgress = start + PROGRESS_INTERVAL.toMillis();
+    long read = 0;
+    remainingBytes.addAndGet(file.size());
+    // the version we listed, a file replaced meanwhile fails instead of mixing two versions
+    try (var in = s3Client.getS3Client().getObject(GetObjectRequest.builder().bucket(bucket).key(file.key()).ifMatch(file.etag()).build())) {
+      var digest = MessageDigest.getInstance("MD5");
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        digest.update(buffer, 0, count);
+        read += count;
+        hashedBytes.addAndGet(count);
+        remainingBytes.addAndGet(-count);
+        if (System.currentTimeMillis() >= nextProgress) {
+          nextProgress += PROGRESS_INTERVAL.toMillis();
+          log.info("Checksum of {}: {}% {} MB/s", file.key(), file.size() > 0 ? read * 100 / file.size() : 100, mbPerSecond(read, System.currentTimeMillis() - start));
+        }
+      }
+      var md5 = HexFormat.of().formatHex(digest.digest());
+      var durationMs = System.currentTimeMillis() - start;
+      log.info("Checksum of {}: {} MB in {}ms ({} MB/s)", file.key(), read / (1024 * 1024), durationMs, mbPerSecond(read, durationMs));
+      return new ChecksumsManifest.Checksum(file.etag(), md5);
+    } finally {
+      hashMs.addAndGet(System.currentTimeMillis() - start);
+      remainingBytes.addAndGet(read - file.size());
+      buffers.add(buffer);
+    }
+  }
+
+  private static long mbPerSecond(long bytes, long durationMs) {
+    return durationMs > 0 ? bytes * 1000 / durationMs / (1024 * 1024) : 0;
+  }
+
+  public Map<String, Object> getMetrics() {
+    var values = new TreeMap<String, Object>();
+    values.put("files", files.get());
+    values.put("cacheHits", cacheHits.get());
+    values.put("hashedBytes", hashedBytes.get());
+    values.put("remainingBytes", remainingBytes.get());
+    values.put("mbPerSecond", mbPerSecond(hashedBytes.get(), hashMs.get()));
+    return values;
+  }
+}
@@ -2,6 +2,7 @@ package bio.ferlab.clin.qlinme.services;
 
 import bio.ferlab.clin.qlinme.model.Metadata;
 import bio.ferlab.clin.qlinme.model.MetadataValidation;
+import bio.ferlab.clin.qlinme.model.ReferenceData;
 import bio.ferlab.clin.qlinme.utils.DateUtils;
 import bio.ferlab.clin.qlinme.utils.NameUtils;
 import bio.ferlab.clin.qlinme.utils.Utils;
@@ -54,12 +55,17 @@ public class MetadataValidationService {
   record Family(List<String> members){}
 
   public MetadataValidation validateMetadata(Metadata m, String batchId, List<String> panelCodeValues, List<String> organizations, Map<String, List<String>> aliquotIDsByBatch, Map<String, List<String>> ldmServiceRequestsByBatch, List<Metadata.Patient> patients) {
+    return validateMetadata(m, batchId, ReferenceData.of(panelCodeValues, organizations), aliquotIDsByBatch, ldmServiceRequestsByBatch, patients);
+  }
+
+  public MetadataValidation validateMetadata(Metadata m, String batchId, ReferenceData referenceData, Map<String, List<String>> aliquotIDsByBatch, Map<String, List<String>> ldmServiceRequestsByBatch, List<Metadata.Patient> patients) {
     var validation = new MetadataValidation();
     Map<String, List<String>> valuesByField = new TreeMap<>();
     Map<String, Family>families = new TreeMap<>();
     Set<String> validRunNames = new TreeSet<>();
-    var ldmValues = organizations.stream().filter(o -> o.startsWith("LDM")).toList();
-    var epValues = organizations.stream().filter(o -> !o.startsWith("LDM")).toList();
+    var panelCodeValues = referenceData.panelCodes();
+    var ldmValues = referenceData.ldms();
+    var epValues = referenceData.eps();
     if (m != null) {
       validateField("submissionSchema", m.submissionSchema(), validation, schemaValues);
       validation.setSchema(m.submissionSchema());
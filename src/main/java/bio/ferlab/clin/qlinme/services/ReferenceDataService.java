@@ -0,0 +1,74 @@
+package bio.ferlab.clin.qlinme.services;
+
+import bio.ferlab.clin.qlinme.cients.FhirClient;
+import bio.ferlab.clin.qlinme.model.ReferenceData;
+import bio.ferlab.clin.qlinme.utils.SingleFlight;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Panel codes and organizations held in memory as an immutable snapshot, swapped atomically once refreshed.
+ * The snapshot is refreshed in background when 3/4 of its TTL is elapsed, requests keep reading the current one
+ * meanwhile, only the very first load (or an explicit no-cache) waits on FHIR. The refresh reads the shared cache,
+ * its entries are refreshed by one node under a lease.
+ * FHIR needs a user token, the refresh is only started by a request and uses the token of that request.
+ */
+@Slf4j
+public class ReferenceDataService {
+
+  private final FhirClient fhirClient;
+  private final long refreshAfterMs;
+  private final AtomicReference<ReferenceData> snapshot = new AtomicReference<>();
+  private final AtomicBoolean refreshing = new AtomicBoolean(false);
+  private final SingleFlight singleFlight = new SingleFlight();
+
+  public ReferenceDataService(FhirClient fhirClient, long ttlMs) {
+    this.fhirClient = fhirClient;
+    this.refreshAfterMs = ttlMs * 3 / 4;
+  }
+
+  public ReferenceData get(String rpt, boolean allowCache) {
+    var current = snapshot.get();
+    if (current == null || !allowCache) {
+      return singleFlight.execute("load." + allowCache, () -> load(rpt, allowCache));
+    }
+    refreshIfStale(rpt);
+    return current;
+  }
+
+  private void refreshIfStale(String rpt) {
+    var current = snapshot.get();
+    if (current != null && System.currentTimeMillis() - current.fetchedAt() > refreshAfterMs && refreshing.compareAndSet(false, true)) {
+      Thread.ofVirtual().start(() -> {
+        try {
+          load(rpt, true);
+        } catch (Exception e) {
+          // current snapshot is kept, next request will try again
+          log.warn("Failed to refresh reference data: {}", e.getMessage());
+        } finally {
+          refreshing.set(false);
+        }
+      });
+    }
+  }
+
+  private ReferenceData load(String rpt, boolean allowCache) {
+    var referenceData = ReferenceData.of(fhirClient.getPanelCodes(rpt, allowCache), fhirClient.getOrganizations(rpt, allowCache));
+    snapshot.set(referenceData);
+    log.info("Reference data refreshed, panels: {} LDMs: {} EPs: {}", referenceData.panelCodes().size(), referenceData.ldms().size(), referenceData.eps().size());
+    return referenceData;
+  }
+
+  public Map<String, Object> getMetrics() {
+    return Optional.ofNullable(snapshot.get()).<Map<String, Object>>map(s -> Map.of(
+      "ageMs", System.currentTimeMillis() - s.fetchedAt(),
+      "panelCodes", s.panelCodes().size(),
+      "ldms", s.ldms().size(),
+      "eps", s.eps().size(),
+      "refreshing", refreshing.get())).orElse(Map.of());
+  }
+}
@@ -0,0 +1,121 @@
+package bio.ferlab.clin.qlinme.services;
+
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.VCFsIndex;
+import bio.ferlab.clin.qlinme.model.VCFsManifest;
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
+import bio.ferlab.clin.qlinme.utils.WriteBehind;
+import com.fasterxml.jackson.core.type.TypeReference;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cross-batch index of the VCF aliquot IDs (one object in .cache), a status finds the other batches having the same
+ * aliquots with one lookup: the local copy is refreshed by a conditional GET, usually a 304.
+ * Updated by batch: the pending entries of every batch are merged in the index in background by a conditional PUT,
+ * retried if another node updated it meanwhile.
+ */
+@Slf4j
+public class VCFsIndexService {
+
+  private static final TypeReference<VCFsIndex> INDEX = new TypeReference<>() { };
+  private static final VCFsIndex EMPTY_INDEX = new VCFsIndex(Map.of());
+  private static final int WRITE_ATTEMPTS = 5;
+
+  private record Local(String etag, VCFsIndex index) {
+  }
+
+  private final String bucket;
+  private final S3Client s3Client;
+  private final CacheCodec codec;
+  private final WriteBehind writeBehind;
+  private final AtomicReference<Local> local = new AtomicReference<>(new Local(null, EMPTY_INDEX));
+  // entries of a batch not written yet, by batch ID
+  private final Map<String, Map<String, List<VCFsIndex.Location>>> pending = new ConcurrentHashMap<>();
+
+  public VCFsIndexService(String bucket, S3Client s3Client, CacheCodec codec, WriteBehind writeBehind) {
+    this.bucket = bucket;
+    this.s3Client = s3Client;
+    this.codec = codec;
+    this.writeBehind = writeBehind;
+  }
+
+  public VCFsIndex get() {
+    var current = local.get();
+    try {
+      var next = s3Client.getVCFsIndex(bucket, current.etag())
+        .map(r -> new Local(r.response().eTag(), codec.decode(r.asByteArray(), INDEX))).orElse(new Local(null, EMPTY_INDEX));
+      local.set(next);
+      return next.index();
+    } catch (S3Exception e) {
+      if (e.statusCode() != S3Client.NOT_MODIFIED) {
+        log.warn("Failed to read VCFs index, use the local one cause: {}", e.getMessage());
+      }
+      return current.index();
+    } catch (Exception e) {
+      log.warn("Failed to read VCFs index, use the local one cause: {}", e.getMessage());
+      return current.index();
+    }
+  }
+
+  // update the index if the batch changed since, the VCFs that can't be read keep their previous entries
+  public void update(VCFsIndex index, String batchId, VCFsManifest manifest, Set<String> unreadable) {
+    var previous = entriesOf(batchId, index);
+    var entries = entriesOf(batchId, manifest);
+    previous.forEach((aliquotID, locations) -> locations.stream().filter(l -> unreadable.contains(l.vcf()))
+      .forEach(l -> entries.computeIfAbsent(aliquotID, id -> new ArrayList<>()).add(l)));
+    entries.values().forEach(locations -> locations.sort(Comparator.comparing(VCFsIndex.Location::vcf)));
+    if (!entries.equals(previous)) {
+      pending.put(batchId, entries);
+      writeBehind.submit(S3Client.formatVCFsIndexKey(), this::write);
+    }
+  }
+
+  private static Map<String, List<VCFsIndex.Location>> entriesOf(String batchId, VCFsManifest manifest) {
+    var entries = new TreeMap<String, List<VCFsIndex.Location>>();
+    manifest.vcfs().forEach((vcf, content) -> content.aliquotIDs().forEach(aliquotID ->
+      entries.computeIfAbsent(aliquotID, id -> new ArrayList<>()).add(new VCFsIndex.Location(batchId, vcf, content.etag()))));
+    return entries;
+  }
+
+  private static Map<String, List<VCFsIndex.Location>> entriesOf(String batchId, VCFsIndex index) {
+    var entries = new TreeMap<String, List<VCFsIndex.Location>>();
+    index.aliquots().forEach((aliquotID, locations) -> {
+      var ofBatch = locations.stream().filter(l -> l.batchId().equals(batchId)).sorted(Comparator.comparing(VCFsIndex.Location::vcf)).toList();
+      if (!ofBatch.isEmpty()) entries.put(aliquotID, ofBatch);
+    });
+    return entries;
+  }
+
+  // every pending batch at once, the write behind never runs it twice at the same time
+  private void write() {
+    var batches = Map.copyOf(pending);
+    if (batches.isEmpty()) return;
+    for (int attempt = 1; ; attempt++) {
+      var existing = s3Client.getVCFsIndex(bucket, null);
+      var index = existing.map(r -> codec.decode(r.asByteArray(), INDEX)).orElse(EMPTY_INDEX);
+      try {
+        s3Client.putVCFsIndex(bucket, codec.encode(merge(index, batches)), existing.map(r -> r.response().eTag()).orElse(null));
+        batches.forEach(pending::remove);  // unless updated again meanwhile
+        return;
+      } catch (S3Exception e) {
+        if (e.statusCode() != S3Client.PRECONDITION_FAILED || attempt >= WRITE_ATTEMPTS) throw e;
+      }
+    }
+  }
+
+  private static VCFsIndex merge(VCFsIndex index, Map<String, Map<String, List<VCFsIndex.Location>>> batches) {
+    var aliquots = new TreeMap<String, List<VCFsIndex.Location>>();
+    index.aliquots().forEach((aliquotID, locations) -> {
+      var others = locations.stream().filter(l -> !batches.containsKey(l.batchId())).toList();
+      if (!others.isEmpty()) aliquots.put(aliquotID, new ArrayList<>(others));
+    });
+    batches.values().forEach(entries -> entries.forEach((aliquotID, locations) ->
+      aliquots.computeIfAbsent(aliquotID, id -> new ArrayList<>()).addAll(locations)));
+    return new VCFsIndex(aliquots);
+  }
+}
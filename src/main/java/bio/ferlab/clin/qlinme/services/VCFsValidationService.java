@@ -1,34 +1,61 @@
 package bio.ferlab.clin.qlinme.services;
 
 import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.BatchFile;
 import bio.ferlab.clin.qlinme.model.Metadata;
+import bio.ferlab.clin.qlinme.model.VCFsIndex;
+import bio.ferlab.clin.qlinme.model.VCFsManifest;
 import bio.ferlab.clin.qlinme.model.VCFsValidation;
-import lombok.RequiredArgsConstructor;
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
+import bio.ferlab.clin.qlinme.utils.TaskScope;
+import bio.ferlab.clin.qlinme.utils.VCFHeaderReader;
+import bio.ferlab.clin.qlinme.utils.VCFIntegrityScanner;
+import bio.ferlab.clin.qlinme.utils.WriteBehind;
+import com.fasterxml.jackson.core.type.TypeReference;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
-import software.amazon.awssdk.core.ResponseInputStream;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
-import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 
-import java.time.Instant;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Semaphore;
 
 @Slf4j
-@RequiredArgsConstructor
 public class VCFsValidationService {
 
   private final String bucket;
   private final S3Client s3Client;
+  private final BatchManifestStore<VCFsManifest> manifests;
+  private final VCFIntegrityScanner scanner;
+  private final VCFsIndexService index;
+  private final Semaphore permits;  // shared by every request, limits the concurrent S3 reads
+  private final Semaphore scanPermits;  // deep scans read whole VCFs, they don't hold the header reads permits
 
-  public VCFsValidation validate(Metadata m, String batchId, List<String> files, boolean allowCache){
+  public VCFsValidationService(String bucket, S3Client s3Client, CacheCodec codec, WriteBehind writeBehind, VCFIntegrityScanner scanner,
+                               VCFsIndexService index, int concurrency, int scanConcurrency) {
+    this.bucket = bucket;
+    this.s3Client = s3Client;
+    this.manifests = new BatchManifestStore<>("VCFs", bucket, s3Client, codec, writeBehind, S3Client::formatVCFsManifestKey, new TypeReference<>() { },
+      new VCFsManifest(Map.of()));
+    this.scanner = scanner;
+    this.index = index;
+    this.permits = new Semaphore(concurrency);
+    this.scanPermits = new Semaphore(scanConcurrency);
+  }
+
+  private record Extraction(VCFsManifest.VCF vcf, Exception error) {
+  }
+
+  private record Scan(List<String> errors, Exception error) {
+  }
+
+  // deepScan: read the whole VCFs to find truncated or corrupted files, slow
+  public VCFsValidation validate(Metadata m, String batchId, List<BatchFile> files, boolean allowCache, boolean deepScan){
     var validation = new VCFsValidation();
     var aliquotIDsInMetadata = extractAliquotIDs(m);
-    var vcfFiles = files.stream().filter(f -> isVCF(m,f)).toList();
-    var aliquotIDByVCFs = extractAliquotIDs(m, batchId, vcfFiles, allowCache);
+    var vcfFiles = files.stream().filter(f -> isVCF(m,f.name())).toList();
+    var vcfsIndex = index.get();
+    var aliquotIDByVCFs = extractAliquotIDs(m, batchId, vcfFiles, allowCache, deepScan, vcfsIndex, validation);
 
     validation.setCount(vcfFiles.size());
 
@@ -46,6 +73,8 @@ public class VCFsValidationService {
       if (vcfs.size() > 1) {
         validation.addWarning(aliquotID+ " has more than one VCF: "+vcfs);
       }
+      vcfsIndex.aliquots().getOrDefault(aliquotID, List.of()).stream().filter(l -> !l.batchId().equals(batchId))
+        .forEach(l -> validation.addWarning(aliquotID+ " also found in batch: "+l.batchId()+" VCF: "+l.vcf()));
     }
 
     return validation;
@@ -63,63 +92,96 @@ public class VCFsValidationService {
     return aliquotIDs;
   }
 
-  private Map<String, List<String>> extractAliquotIDs(Metadata m, String batchId, List<String> files, boolean allowCache) {
+  // VCFs are read concurrently, a VCF that can't be read is an error of that file only
+  private Map<String, List<String>> extractAliquotIDs(Metadata m, String batchId, List<BatchFile> files, boolean allowCache, boolean deepScan, VCFsIndex vcfsIndex, VCFsValidation validation) {
     var aliquotIDByVCFs = new TreeMap<String, List<String>>();
     if (files != null) {
-      var vcfs = files.stream().filter(f -> isVCF(m,f)).toList();
-      for(var vcf: vcfs) {
-        extractAliquotIDs(batchId+"/"+vcf, allowCache).forEach(aliquot -> {
-          aliquotIDByVCFs.computeIfAbsent(aliquot, id -> new ArrayList<>());
-          aliquotIDByVCFs.get(aliquot).add(vcf);
-        });
+      var vcfs = files.stream().filter(f -> isVCF(m,f.name())).toList();
+      var known = allowCache ? manifests.read(batchId).vcfs() : Map.<String, VCFsManifest.VCF>of();
+      var current = new TreeMap<String, VCFsManifest.VCF>();
+      var unreadable = new HashSet<String>();
+      try (var scope = new TaskScope(permits)) {
+        var extractions = vcfs.stream().map(vcf -> scope.fork(() -> {
+          try {
+            return new Extraction(extractAliquotIDs(vcf, known.get(vcf.name())), null);
+          } catch (Exception e) {
+            return new Extraction(null, e);
+          }
+        })).toList();
+        scope.join();
+        for (int i = 0; i < vcfs.size(); i++) {
+          var vcf = vcfs.get(i).name();
+          var extraction = extractions.get(i).get();
+          if (extraction.error() != null) {
+            log.warn("Failed to extract aliquot IDs: {}/{}", batchId, vcf, extraction.error());
+            validation.addError(vcf + " can't be read: " + ExceptionUtils.getRootCause(extraction.error()).getMessage());
+            unreadable.add(vcf);
+            continue;
+          }
+          current.put(vcf, extraction.vcf());
+          extraction.vcf().aliquotIDs().forEach(aliquot -> {
+            aliquotIDByVCFs.computeIfAbsent(aliquot, id -> new ArrayList<>());
+            aliquotIDByVCFs.get(aliquot).add(vcf);
+          });
+        }
+      }
+      if (!current.equals(known)) {
+        manifests.write(batchId, new VCFsManifest(current));
+      }
+      index.update(vcfsIndex, batchId, new VCFsManifest(current), unreadable);
+      if (deepScan) {
+        scan(batchId, vcfs.stream().filter(vcf -> current.containsKey(vcf.name())).toList(), validation);
       }
     }
     return  aliquotIDByVCFs;
   }
 
-  private List<String> extractAliquotIDs(String key, boolean allowCache) {
-    ResponseInputStream<GetObjectResponse> vcfInputStream = null;
-    Scanner vcfReader = null;
-    var aliquotIDs = new ArrayList<String>();
-    Instant lastModified = null;
-    try {
-      lastModified = s3Client.getS3Client().headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build()).lastModified();
-      var cached = extractAliquotIDsFromCache(key, lastModified, allowCache);
-      if (cached.isPresent()) {
-        aliquotIDs.addAll(cached.get());
-      } else {
-        vcfInputStream = s3Client.getS3Client().getObject(GetObjectRequest.builder().bucket(bucket).key(key).build());
-        lastModified = vcfInputStream.response().lastModified();
-        vcfReader = new Scanner(new GZIPInputStream(vcfInputStream));
-        while(vcfReader.hasNext() && aliquotIDs.isEmpty()) {
-          var line = vcfReader.nextLine();
-          if (line.startsWith("#CHROM")) {
-            aliquotIDs.addAll(Arrays.stream(line.replace("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t", "").split("\t")).toList());
-            vcfInputStream.abort(); // ignore the remaining response
-          }
+  // after the headers, only the readable VCFs
+  private void scan(String batchId, List<BatchFile> vcfs, VCFsValidation validation) {
+    try (var scope = new TaskScope(scanPermits)) {
+      var scans = vcfs.stream().map(vcf -> scope.fork(() -> {
+        try {
+          return new Scan(scan(vcf), null);
+        } catch (Exception e) {
+          return new Scan(List.of(), e);
+        }
+      })).toList();
+      scope.join();
+      for (int i = 0; i < vcfs.size(); i++) {
+        var vcf = vcfs.get(i).name();
+        var scan = scans.get(i).get();
+        if (scan.error() != null) {
+          log.warn("Failed to scan VCF: {}/{}", batchId, vcf, scan.error());
+          validation.addError(vcf + " can't be scanned: " + ExceptionUtils.getRootCause(scan.error()).getMessage());
+          continue;
         }
-        log.info("Cache VCF aliquot IDs: {} {}", key, lastModified);
-        s3Client.setCachedVCFAliquotIDs(bucket, key, lastModified, aliquotIDs);
+        scan.errors().forEach(error -> validation.addError(vcf + ": " + error));
       }
+    }
+  }
+
+  private VCFsManifest.VCF extractAliquotIDs(BatchFile vcf, VCFsManifest.VCF known) {
+    try {
+      if (known != null && known.etag().equals(vcf.etag())) {
+        return known;
+      }
+      // only the header, by ranges of the version we listed
+      var aliquotIDs = VCFHeaderReader.readSampleIDs((offset, length) -> s3Client.getS3Client().getObjectAsBytes(GetObjectRequest.builder()
+        .bucket(bucket).key(vcf.key()).range("bytes=" + offset + "-" + (offset + length - 1)).ifMatch(vcf.etag()).build()).asByteArray(), vcf.size());
       if (aliquotIDs.isEmpty()) {
-        throw new RuntimeException("No aliquots IDs found in: "+ key);
+        throw new RuntimeException("No aliquots IDs found in: "+ vcf.key());
       }
+      log.info("Read VCF aliquot IDs: {} {}", vcf.key(), vcf.etag());
+      return new VCFsManifest.VCF(vcf.etag(), aliquotIDs);
     } catch (Exception e) {
       throw new RuntimeException(e);
-    } finally {
-      IOUtils.closeQuietly(vcfReader, vcfInputStream);
     }
-    return aliquotIDs;
   }
 
-
-  private Optional<List<String>> extractAliquotIDsFromCache(String key, Instant lastModified, boolean allowCache) {
-    try {
-      if (!allowCache) return Optional.empty();
-      var data = s3Client.getCachedVCFAliquotIDs(bucket, key, lastModified);
-      return Optional.of(Arrays.stream(new String(data).split(",")).toList());
-    } catch (NoSuchKeyException e) {
-      return Optional.empty();
+  // one streamed GET of the version we listed, blocks are inflated by the scanner
+  private List<String> scan(BatchFile vcf) {
+    try (var in = s3Client.getS3Client().getObject(GetObjectRequest.builder().bucket(bucket).key(vcf.key()).ifMatch(vcf.etag()).build())) {
+      return scanner.scan(vcf.key(), in).errors();
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
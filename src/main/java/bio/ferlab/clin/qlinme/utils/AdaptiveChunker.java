@@ -0,0 +1,82 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chunk size of an identifier search, adapted to the observed server behavior: a full chunk answered faster than
+ * the target latency grows the size by half (up to max), a chunk too big (414, or read timeout) halves it (down to 1).
+ * A 5xx doesn't shrink it: a server error isn't about the chunk size, the retries and the breaker handle it.
+ * Chunks are also cut so the encoded identifiers never exceed the URL bytes budget.
+ */
+public class AdaptiveChunker {
+
+  private static final double LATENCY_WEIGHT = 0.2;  // EWMA, recent responses weight more
+
+  private final int maxSize;
+  private final int maxUrlBytes;
+  private final long targetLatencyMs;
+  private final AtomicInteger size;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile double latencyMs = 0;
+
+  public AdaptiveChunker(int initialSize, int maxSize, int maxUrlBytes, long targetLatencyMs) {
+    this.size = new AtomicInteger(initialSize);
+    this.maxSize = maxSize;
+    this.maxUrlBytes = maxUrlBytes;
+    this.targetLatencyMs = targetLatencyMs;
+  }
+
+  public List<List<String>> partition(List<String> ids) {
+    var chunkSize = size.get();
+    var chunks = new ArrayList<List<String>>();
+    var chunk = new ArrayList<String>();
+    var chunkBytes = 0;
+    for (var id : ids) {
+      var idBytes = Utils.encodeURL(id).length() + 3; // + encoded comma
+      if (!chunk.isEmpty() && (chunk.size() >= chunkSize || chunkBytes + idBytes > maxUrlBytes)) {
+        chunks.add(chunk);
+        chunk = new ArrayList<>();
+        chunkBytes = 0;
+      }
+      chunk.add(id);
+      chunkBytes += idBytes;
+    }
+    if (!chunk.isEmpty()) chunks.add(chunk);
+    return chunks;
+  }
+
+  public void onSuccess(int chunkSize, long elapsedMs) {
+    requests.incrementAndGet();
+    updateLatency(elapsedMs);
+    // a partial chunk (last one or cut by URL bytes) says nothing about a bigger size
+    if (elapsedMs < targetLatencyMs) {
+      size.updateAndGet(s -> chunkSize >= s ? Math.min(maxSize, s + Math.max(1, s / 2)) : s);
+    }
+  }
+
+  public void onFailure(long elapsedMs) {
+    requests.incrementAndGet();
+    failures.incrementAndGet();
+    updateLatency(elapsedMs);
+    size.updateAndGet(s -> Math.max(1, s / 2));
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  public Metrics metrics() {
+    return new Metrics(size.get(), Math.round(latencyMs), requests.get(), failures.get());
+  }
+
+  private synchronized void updateLatency(long elapsedMs) {
+    latencyMs = latencyMs == 0 ? elapsedMs : LATENCY_WEIGHT * elapsedMs + (1 - LATENCY_WEIGHT) * latencyMs;
+  }
+
+  public record Metrics(int chunkSize, long latencyMs, long requests, long failures) {
+  }
+}
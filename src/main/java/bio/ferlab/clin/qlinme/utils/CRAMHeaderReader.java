@@ -0,0 +1,142 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read the samples (@RG SM:) of a CRAM 3 by byte ranges: the file definition, the header container header and its
+ * first block (the SAM header), nothing after so the alignments are never downloaded. A first small range has the
+ * block sizes, then one more range of the exact missing length is requested if the SAM header is longer.
+ */
+public class CRAMHeaderReader {
+
+  public interface RangeReader {
+    byte[] read(long offset, int length);
+  }
+
+  private static final int FIRST_RANGE = 4 * 1024;  // small: a short SAM header is followed by alignments
+  private static final int MAX_HEADER = 32 * 1024 * 1024;
+  private static final byte[] MAGIC = "CRAM".getBytes(StandardCharsets.US_ASCII);
+  private static final int FILE_DEFINITION = 26;  // CRAM, major, minor, file id (20)
+  private static final int RAW = 0;
+  private static final int GZIP = 1;
+  private static final int FILE_HEADER = 0;
+
+  private final RangeReader reader;
+  private final long size;
+  private byte[] in = new byte[0];
+  private int pos = 0;
+
+  private CRAMHeaderReader(RangeReader reader, long size) {
+    this.reader = reader;
+    this.size = size;
+  }
+
+  public static List<String> readSamples(RangeReader reader, long size) {
+    return new CRAMHeaderReader(reader, size).read();
+  }
+
+  private List<String> read() {
+    require(FILE_DEFINITION);
+    if (!Arrays.equals(in, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) throw new IllegalStateException("Not a CRAM file");
+    var major = in[4];
+    if (major != 3) throw new IllegalStateException("Unsupported CRAM version: " + major + "." + in[5]);
+    pos = FILE_DEFINITION;
+    // container header: length, ref id, start, span, records, record counter, bases, blocks, landmarks, crc32
+    pos += 4;
+    for (int i = 0; i < 4; i++) readITF8();
+    readLTF8();
+    readLTF8();
+    readITF8();
+    var landmarks = readITF8();
+    for (int i = 0; i < landmarks; i++) readITF8();
+    pos += 4;
+    // first block: method, content type, content id, compressed size, raw size, data, crc32
+    require(2);
+    var method = in[pos++];
+    var contentType = in[pos++];
+    readITF8();
+    var compressedSize = readITF8();
+    var rawSize = readITF8();
+    if (contentType != FILE_HEADER) throw new IllegalStateException("No SAM header block");
+    if (compressedSize < 0 || rawSize < 0 || compressedSize > MAX_HEADER || rawSize > MAX_HEADER) {
+      throw new IllegalStateException("Invalid SAM header block size: " + compressedSize);
+    }
+    require(compressedSize);
+    var data = switch (method) {
+      case RAW -> Arrays.copyOfRange(in, pos, pos + compressedSize);
+      case GZIP -> gunzip(compressedSize, rawSize);
+      default -> throw new IllegalStateException("Unsupported SAM header block compression: " + method);
+    };
+    if (data.length < 4) throw new IllegalStateException("Truncated SAM header");
+    var textLength = (data[0] & 0xFF) | (data[1] & 0xFF) << 8 | (data[2] & 0xFF) << 16 | (data[3] & 0xFF) << 24;
+    if (textLength < 0 || textLength > data.length - 4) throw new IllegalStateException("Truncated SAM header");
+    return parseSamples(new String(data, 4, textLength, StandardCharsets.UTF_8));
+  }
+
+  private byte[] gunzip(int compressedSize, int rawSize) {
+    try (var gzip = new GZIPInputStream(new ByteArrayInputStream(in, pos, compressedSize))) {
+      return gzip.readNBytes(rawSize);
+    } catch (IOException e) {
+      throw new IllegalStateException("Invalid SAM header block: " + e.getMessage(), e);
+    }
+  }
+
+  // distinct SM of the @RG lines, in order
+  private static List<String> parseSamples(String header) {
+    var samples = new LinkedHashSet<String>();
+    header.lines().filter(line -> line.startsWith("@RG\t")).forEach(line -> {
+      for (var field : line.split("\t")) {
+        if (field.startsWith("SM:")) samples.add(field.substring(3));
+      }
+    });
+    return new ArrayList<>(samples);
+  }
+
+  private int readITF8() {
+    require(1);
+    var b0 = in[pos] & 0xFF;
+    var length = (b0 & 0x80) == 0 ? 1 : (b0 & 0x40) == 0 ? 2 : (b0 & 0x20) == 0 ? 3 : (b0 & 0x10) == 0 ? 4 : 5;
+    require(length);
+    int value;
+    if (length == 5) {
+      value = (b0 & 0x0F) << 28 | (in[pos + 1] & 0xFF) << 20 | (in[pos + 2] & 0xFF) << 12 | (in[pos + 3] & 0xFF) << 4 | (in[pos + 4] & 0x0F);
+    } else {
+      value = b0 & (0xFF >> length);
+      for (int i = 1; i < length; i++) value = value << 8 | (in[pos + i] & 0xFF);
+    }
+    pos += length;
+    return value;
+  }
+
+  private long readLTF8() {
+    require(1);
+    var b0 = in[pos] & 0xFF;
+    var extra = Integer.numberOfLeadingZeros(~b0 & 0xFF) - 24;  // leading 1 bits
+    require(1 + extra);
+    long value = b0 & (0xFF >> (extra + 1));
+    for (int i = 1; i <= extra; i++) value = value << 8 | (in[pos + i] & 0xFF);
+    pos += 1 + extra;
+    return value;
+  }
+
+  // at least count bytes after pos, the file is read from the start so in[] has all the bytes before
+  private void require(int count) {
+    var needed = (long) pos + count;
+    if (needed <= in.length) return;
+    if (needed > MAX_HEADER) throw new IllegalStateException("No SAM header in the first " + MAX_HEADER + " bytes");
+    if (needed > size) throw new IllegalStateException("Truncated CRAM header");
+    var length = (int) Math.min(Math.max(needed - in.length, in.length == 0 ? FIRST_RANGE : 0), size - in.length);
+    var bytes = reader.read(in.length, length);
+    if (in.length + bytes.length < needed) throw new IllegalStateException("Truncated CRAM header");
+    var next = Arrays.copyOf(in, in.length + bytes.length);
+    System.arraycopy(bytes, 0, next, in.length, bytes.length);
+    in = next;
+  }
+}
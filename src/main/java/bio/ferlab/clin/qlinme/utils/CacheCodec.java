@@ -0,0 +1,98 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding of the cache entries. Binary entries start with a 4 bytes header: magic (0xC0DE, can't start a UTF-8
+ * text), version and format. Entries without header are the legacy JSON ones.
+ * JSON format writes the legacy encoding (no header), readable by the previous versions of the app.
+ */
+public class CacheCodec {
+
+  public enum Format { JSON, SMILE, SMILE_GZIP }  // ordinal is written in the header, append only
+
+  private static final byte[] MAGIC = {(byte) 0xC0, (byte) 0xDE};
+  private static final byte VERSION = 1;
+  private static final int HEADER_SIZE = 4;
+  private static final int GZIP_MIN_SIZE = 512;  // smaller entries don't compress enough to pay the gzip overhead
+
+  private final ObjectMapper jsonMapper;
+  private final ObjectMapper smileMapper;
+  private final Format format;
+
+  public CacheCodec(ObjectMapper jsonMapper, Format format) {
+    this.jsonMapper = jsonMapper;
+    this.smileMapper = jsonMapper.copyWith(new SmileFactory());  // same configuration (inclusion, unknown properties ...)
+    this.format = format;
+  }
+
+  public byte[] encode(Object value) {
+    try {
+      if (Format.JSON.equals(format)) {
+        return jsonMapper.writeValueAsBytes(value);
+      }
+      var smile = smileMapper.writeValueAsBytes(value);
+      var out = new ByteArrayOutputStream(smile.length + HEADER_SIZE);
+      if (Format.SMILE_GZIP.equals(format) && smile.length >= GZIP_MIN_SIZE) {
+        writeHeader(out, Format.SMILE_GZIP);
+        try (var gzip = new GZIPOutputStream(out)) {
+          gzip.write(smile);
+        }
+      } else {
+        writeHeader(out, Format.SMILE);
+        out.write(smile);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public <T> T decode(byte[] data, TypeReference<T> t) {
+    try {
+      if (!hasHeader(data)) {
+        return jsonMapper.readValue(data, t);
+      }
+      if (data[2] != VERSION) {
+        throw new IllegalStateException("Unsupported cache entry version: " + data[2]);
+      }
+      var format = Format.values()[data[3]];
+      InputStream payload = new ByteArrayInputStream(data, HEADER_SIZE, data.length - HEADER_SIZE);
+      if (Format.SMILE_GZIP.equals(format)) {
+        payload = new GZIPInputStream(payload);
+      }
+      return smileMapper.readValue(payload, t);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // size of the uncompressed payload (gzip trailer ISIZE), closer to the size of the decoded value than the entry size
+  public int rawSize(byte[] data) {
+    if (!hasHeader(data) || data[3] != Format.SMILE_GZIP.ordinal() || data.length < HEADER_SIZE + 4) {
+      return data.length;
+    }
+    var n = data.length;
+    var size = (data[n - 4] & 0xFF) | (data[n - 3] & 0xFF) << 8 | (data[n - 2] & 0xFF) << 16 | (data[n - 1] & 0xFF) << 24;
+    return size < 0 ? Integer.MAX_VALUE : size;
+  }
+
+  private boolean hasHeader(byte[] data) {
+    return data.length >= HEADER_SIZE && data[0] == MAGIC[0] && data[1] == MAGIC[1];
+  }
+
+  private void writeHeader(ByteArrayOutputStream out, Format format) {
+    out.writeBytes(MAGIC);
+    out.write(VERSION);
+    out.write(format.ordinal());
+  }
+}
@@ -0,0 +1,68 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import java.io.Serial;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open after a number of consecutive failures, calls are rejected without waiting for the server until the open
+ * delay is elapsed, then one trial call is let through (half-open): success closes the breaker, failure re-opens it.
+ */
+public class CircuitBreaker {
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openMs;
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicLong openedAt = new AtomicLong(0);  // 0 = closed
+  private final AtomicLong rejected = new AtomicLong();
+
+  public CircuitBreaker(String name, int failureThreshold, long openMs) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openMs = openMs;
+  }
+
+  public void acquire() {
+    var opened = openedAt.get();
+    if (opened != 0) {
+      // only one caller wins the trial call, the next trial is after another open delay
+      if (System.currentTimeMillis() - opened < openMs || !openedAt.compareAndSet(opened, System.currentTimeMillis())) {
+        rejected.incrementAndGet();
+        throw new OpenException(name);
+      }
+    }
+  }
+
+  public void onSuccess() {
+    failures.set(0);
+    openedAt.set(0);
+  }
+
+  public void onFailure() {
+    if (failures.incrementAndGet() >= failureThreshold) {
+      openedAt.set(System.currentTimeMillis());
+    }
+  }
+
+  public State state() {
+    var opened = openedAt.get();
+    if (opened == 0) return State.CLOSED;
+    return System.currentTimeMillis() - opened < openMs ? State.OPEN : State.HALF_OPEN;
+  }
+
+  public long rejected() {
+    return rejected.get();
+  }
+
+  public static class OpenException extends RuntimeException {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    public OpenException(String name) {
+      super("Circuit breaker is open: " + name);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Wrap idempotent calls to a remote server, by call type:
+ * <ul>
+ *   <li>a circuit breaker rejects calls immediately while the server keeps failing</li>
+ *   <li>failed calls are retried with a jittered exponential backoff, limited by a global retry budget and never
+ *   after half the deadline is spent</li>
+ *   <li>optionally a second identical call is hedged when the first one is slower than the p95 latency, first
+ *   successful response wins (hedges use the retry budget too)</li>
+ * </ul>
+ * Only the failures matching the retryable predicate (server side) are retried and counted by the breaker.
+ */
+@Slf4j
+public class Resilience {
+
+  private static final int LATENCY_WINDOW = 100;
+  private static final int MIN_HEDGE_SAMPLES = 20;
+
+  private final int maxAttempts;
+  private final long backoffMs;
+  private final long deadlineMs;
+  private final int breakerThreshold;
+  private final long breakerOpenMs;
+  private final boolean hedging;
+  private final Predicate<RuntimeException> retryable;
+  private final RetryBudget retryBudget = new RetryBudget(0.1, 10);
+  private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+  private final Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  public Resilience(int maxAttempts, long backoffMs, long deadlineMs, int breakerThreshold, long breakerOpenMs,
+                    boolean hedging, Predicate<RuntimeException> retryable) {
+    this.maxAttempts = maxAttempts;
+    this.backoffMs = backoffMs;
+    this.deadlineMs = deadlineMs;
+    this.breakerThreshold = breakerThreshold;
+    this.breakerOpenMs = breakerOpenMs;
+    this.hedging = hedging;
+    this.retryable = retryable;
+  }
+
+  public <T> T call(String type, Callable<T> call) {
+    var breaker = breakers.computeIfAbsent(type, t -> new CircuitBreaker(t, breakerThreshold, breakerOpenMs));
+    var start = System.currentTimeMillis();
+    retryBudget.deposit();
+    for (int attempt = 1; ; attempt++) {
+      breaker.acquire();
+      try {
+        var result = hedged(type, call);
+        breaker.onSuccess();
+        return result;
+      } catch (RuntimeException e) {
+        if (!retryable.test(e)) {
+          breaker.onSuccess();  // the server did answer, a half-open trial closes the breaker
+          throw e;
+        }
+        breaker.onFailure();
+        if (attempt >= maxAttempts || System.currentTimeMillis() - start > deadlineMs / 2 || !retryBudget.tryWithdraw()) {
+          throw e;
+        }
+        retries.incrementAndGet();
+        var backoff = ThreadLocalRandom.current().nextLong(backoffMs * (1L << (attempt - 1)) + 1); // full jitter
+        log.warn("Retry {} attempt {} in {}ms: {}", type, attempt + 1, backoff, e.getMessage());
+        sleep(backoff);
+      }
+    }
+  }
+
+  private <T> T hedged(String type, Callable<T> call) {
+    var latency = latencies.computeIfAbsent(type, t -> new Latencies());
+    var hedgeDelay = latency.p95();
+    if (!hedging || hedgeDelay < 0) {
+      return timed(latency, call);
+    }
+    var response = new CompletableFuture<T>();
+    var started = new AtomicInteger(1);
+    var failed = new AtomicInteger();
+    var primary = executor.submit(() -> complete(response, started, failed, latency, call));
+    Future<?> hedge = null;
+    try {
+      try {
+        return response.get(hedgeDelay, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (!retryBudget.tryWithdraw()) return response.get();  // hedges are extra load too
+        hedges.incrementAndGet();
+        started.incrementAndGet();
+        hedge = executor.submit(() -> complete(response, started, failed, latency, call));
+        return response.get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException re) throw re;
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      // the slower call is useless now, best effort (blocking IO may not be interruptible)
+      primary.cancel(true);
+      if (hedge != null) hedge.cancel(true);
+    }
+  }
+
+  // first success completes the response, a failure only if every started call failed
+  private <T> void complete(CompletableFuture<T> response, AtomicInteger started, AtomicInteger failed, Latencies latency, Callable<T> call) {
+    try {
+      response.complete(timed(latency, call));
+    } catch (RuntimeException e) {
+      if (failed.incrementAndGet() >= started.get()) {
+        response.completeExceptionally(e);
+      }
+    }
+  }
+
+  private <T> T timed(Latencies latency, Callable<T> call) {
+    var start = System.currentTimeMillis();
+    try {
+      var result = call.call();
+      latency.add(System.currentTimeMillis() - start);
+      return result;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  public Map<String, Object> metrics() {
+    var values = new TreeMap<String, Object>();
+    breakers.forEach((type, breaker) -> values.put(type, new Metrics(breaker.state(), breaker.rejected(),
+      latencies.getOrDefault(type, new Latencies()).p95())));
+    values.put("retries", retries.get());
+    values.put("hedges", hedges.get());
+    values.put("retryBudget", retryBudget.tokens());
+    return values;
+  }
+
+  public record Metrics(CircuitBreaker.State state, long rejected, long p95LatencyMs) {
+  }
+
+  // last successful latencies of a call type, -1 until enough samples
+  private static class Latencies {
+    private final long[] window = new long[LATENCY_WINDOW];
+    private int count = 0;
+
+    synchronized void add(long latencyMs) {
+      window[count++ % LATENCY_WINDOW] = latencyMs;
+    }
+
+    synchronized long p95() {
+      if (count < MIN_HEDGE_SAMPLES) return -1;
+      var sorted = Arrays.copyOf(window, Math.min(count, LATENCY_WINDOW));
+      Arrays.sort(sorted);
+      return sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+    }
+  }
+}
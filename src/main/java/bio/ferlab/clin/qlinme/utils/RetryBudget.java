@@ -0,0 +1,32 @@
+package bio.ferlab.clin.qlinme.utils;
+
+/**
+ * Retries are limited to a ratio of the requests, shared by all callers: when the server is degraded the retries
+ * can't multiply the load. Every request deposits ratio token (up to max), every retry withdraws one.
+ */
+public class RetryBudget {
+
+  private final double ratio;
+  private final double maxTokens;
+  private double tokens;
+
+  public RetryBudget(double ratio, int maxTokens) {
+    this.ratio = ratio;
+    this.maxTokens = maxTokens;
+    this.tokens = maxTokens;
+  }
+
+  public synchronized void deposit() {
+    tokens = Math.min(maxTokens, tokens + ratio);
+  }
+
+  public synchronized boolean tryWithdraw() {
+    if (tokens < 1) return false;
+    tokens--;
+    return true;
+  }
+
+  public synchronized double tokens() {
+    return tokens;
+  }
+}
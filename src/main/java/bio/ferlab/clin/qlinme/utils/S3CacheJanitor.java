@@ -0,0 +1,253 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.VCFsIndex;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * Delete the cache entries nobody will read again, the listing is streamed page by page and deleted by batches of
+ * 1000 keys (multi-object delete), every S3 request (list, head, delete) goes through a rate limiter:
+ * <ul>
+ *   <li>expired entries of S3TimedCache: older than the TTL + stale grace (same for the legacy VCF aliquot IDs
+ *   entries, replaced by the batch manifests)</li>
+ *   <li>leases left by a crashed node</li>
+ *   <li>manifests (VCFs, checksums, CRAMs) of a batch deleted since</li>
+ *   <li>optionally the metadata backups of a batch deleted since</li>
+ * </ul>
+ * The cross-batch VCFs index is never deleted, the locations of a batch deleted since are removed from it by a conditional
+ * PUT (left to the next run if a node updated it meanwhile). Deletes are idempotent, replicas running it at the same time
+ * only waste requests.
+ */
+@Slf4j
+public class S3CacheJanitor implements AutoCloseable {
+
+  private static final int DELETE_BATCH_SIZE = 1000;  // S3 limit
+  private static final Duration LEASE_MAX_AGE = Duration.ofMinutes(10);
+  // an entry younger than that may have been written after we looked at its batch
+  private static final Duration ORPHAN_MIN_AGE = Duration.ofHours(1);
+  private static final Pattern MANIFEST_KEY = Pattern.compile("^" + Pattern.quote(S3Client.CACHE_FOLDER + "/") + "(.+)/("
+    + Pattern.quote(S3Client.VCFS_MANIFEST) + "|" + Pattern.quote(S3Client.CHECKSUMS_MANIFEST) + "|" + Pattern.quote(S3Client.CRAMS_MANIFEST) + ")$");
+  private static final TypeReference<VCFsIndex> VCFS_INDEX = new TypeReference<>() { };
+  private static final Pattern BACKUP_KEY = Pattern.compile("^" + Pattern.quote(S3Client.BACKUP_FOLDER + "/") + "(.+)/metadata\\.json\\.[^/]+$");
+
+  public enum Kind { expired, leases, orphans, backups, indexLocations }
+
+  public record Result(long scanned, Map<Kind, Long> deleted, long reclaimedBytes, long durationMs) {
+  }
+
+  private final S3Client s3Client;
+  private final String bucket;
+  private final CacheCodec codec;
+  private final Duration maxAge;
+  private final boolean backups;
+  private final RateLimiter rateLimiter;
+  private final AtomicBoolean running = new AtomicBoolean(false);
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong reclaimedBytes = new AtomicLong();
+  private final Map<Kind, AtomicLong> deleted = new EnumMap<>(Kind.class);
+  private final AtomicReference<Result> lastResult = new AtomicReference<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().factory());
+
+  public S3CacheJanitor(S3Client s3Client, String bucket, CacheCodec codec, int cacheTimeoutInHour, Duration staleGrace, int requestsPerSecond, boolean backups) {
+    this.s3Client = s3Client;
+    this.bucket = bucket;
+    this.codec = codec;
+    this.maxAge = Duration.ofHours(cacheTimeoutInHour).plus(staleGrace);
+    this.backups = backups;
+    this.rateLimiter = RateLimiter.create(requestsPerSecond);
+    Arrays.stream(Kind.values()).forEach(kind -> deleted.put(kind, new AtomicLong()));
+  }
+
+  public S3CacheJanitor start(Duration interval) {
+    // random first run, replicas started together don't clean together
+    var initialDelay = ThreadLocalRandom.current().nextLong(interval.toMillis()) + 1;
+    scheduler.scheduleAtFixedRate(() -> {
+      try {
+        run();
+      } catch (Exception e) {
+        failures.incrementAndGet();
+        log.warn("Cache janitor failed: {}", e.getMessage());
+      }
+    }, initialDelay, interval.toMillis(), TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  public Optional<Result> run() {
+    if (!running.compareAndSet(false, true)) return Optional.empty();
+    try {
+      var start = System.currentTimeMillis();
+      var run = new Run();
+      scan(S3Client.CACHE_FOLDER, run, this::classifyCache);
+      if (backups) {
+        scan(S3Client.BACKUP_FOLDER, run, this::classifyBackup);
+      }
+      run.flush();
+      if (run.vcfsIndex) {
+        pruneVCFsIndex(run);
+      }
+      var result = new Result(run.scanned, Collections.unmodifiableMap(run.deleted), run.reclaimedBytes, System.currentTimeMillis() - start);
+      runs.incrementAndGet();
+      lastResult.set(result);
+      log.info("Cache janitor scanned: {} deleted: {} reclaimed: {} bytes in {}ms", result.scanned(), result.deleted(), result.reclaimedBytes(), result.durationMs());
+      return Optional.of(result);
+    } finally {
+      running.set(false);
+    }
+  }
+
+  private interface Classifier {
+    Optional<Kind> classify(S3Object object, Run run);
+  }
+
+  private void scan(String folder, Run run, Classifier classifier) {
+    String continuationToken = null;
+    do {
+      rateLimiter.acquire();
+      var response = s3Client.getS3Client().listObjectsV2(ListObjectsV2Request.builder().bucket(bucket).prefix(folder + "/")
+        .continuationToken(continuationToken).build());
+      for (var object : response.contents()) {
+        run.scanned++;
+        classifier.classify(object, run).ifPresent(kind -> run.delete(object, kind));
+      }
+      continuationToken = response.isTruncated() ? response.nextContinuationToken() : null;
+    } while (continuationToken != null);
+  }
+
+  private Optional<Kind> classifyCache(S3Object object, Run run) {
+    var age = Duration.between(object.lastModified(), Instant.now());
+    if (object.key().endsWith(".lease")) {
+      return age.compareTo(LEASE_MAX_AGE) > 0 ? Optional.of(Kind.leases) : Optional.empty();
+    }
+    if (object.key().equals(S3Client.formatVCFsIndexKey())) {
+      run.vcfsIndex = true;
+      return Optional.empty();  // all the batches, never expires
+    }
+    var manifest = MANIFEST_KEY.matcher(object.key());
+    if (manifest.matches()) {
+      if (age.compareTo(ORPHAN_MIN_AGE) < 0) return Optional.empty();
+      // unknown (HEAD failed) is kept, only a deleted batch makes an orphan
+      return run.lastModified(manifest.group(1) + "/metadata.json").filter(String::isEmpty).map(missing -> Kind.orphans);
+    }
+    return age.compareTo(maxAge) > 0 ? Optional.of(Kind.expired) : Optional.empty();
+  }
+
+  private void pruneVCFsIndex(Run run) {
+    try {
+      rateLimiter.acquire();
+      var existing = s3Client.getVCFsIndex(bucket, null);
+      if (existing.isEmpty()) return;
+      var aliquots = new TreeMap<String, List<VCFsIndex.Location>>();
+      long removed = 0;
+      for (var entry : codec.decode(existing.get().asByteArray(), VCFS_INDEX).aliquots().entrySet()) {
+        // unknown (HEAD failed) is kept, like the manifests
+        var kept = entry.getValue().stream().filter(l -> run.lastModified(l.batchId() + "/metadata.json").filter(String::isEmpty).isEmpty()).toList();
+        removed += entry.getValue().size() - kept.size();
+        if (!kept.isEmpty()) aliquots.put(entry.getKey(), kept);
+      }
+      if (removed == 0) return;
+      rateLimiter.acquire();
+      s3Client.putVCFsIndex(bucket, codec.encode(new VCFsIndex(aliquots)), existing.get().response().eTag());
+      run.deleted.merge(Kind.indexLocations, removed, Long::sum);
+      deleted.get(Kind.indexLocations).addAndGet(removed);
+    } catch (RuntimeException e) {
+      if (e instanceof S3Exception s3 && s3.statusCode() == S3Client.PRECONDITION_FAILED) {
+        log.info("Cache janitor skipped the VCFs index updated meanwhile");
+        return;
+      }
+      failures.incrementAndGet();
+      log.warn("Cache janitor failed to prune the VCFs index cause: {}", e.getMessage());
+    }
+  }
+
+  private Optional<Kind> classifyBackup(S3Object object, Run run) {
+    var backup = BACKUP_KEY.matcher(object.key());
+    if (!backup.matches() || Duration.between(object.lastModified(), Instant.now()).compareTo(ORPHAN_MIN_AGE) < 0) return Optional.empty();
+    return run.lastModified(backup.group(1) + "/metadata.json").filter(String::isEmpty).map(missing -> Kind.backups);
+  }
+
+  // state of one run, single threaded
+  private class Run {
+    long scanned = 0;
+    long reclaimedBytes = 0;
+    boolean vcfsIndex = false;
+    final Map<Kind, Long> deleted = new EnumMap<>(Kind.class);
+    final List<S3Object> pending = new ArrayList<>();
+    final Map<String, Kind> pendingKinds = new HashMap<>();
+    final Map<String, Optional<String>> lastModifieds = new HashMap<>();
+
+    // last modified of an object, empty string if it doesn't exist, empty optional if unknown
+    Optional<String> lastModified(String key) {
+      return lastModifieds.computeIfAbsent(key, k -> {
+        rateLimiter.acquire();
+        try {
+          return Optional.of(s3Client.getS3Client().headObject(HeadObjectRequest.builder().bucket(bucket).key(k).build()).lastModified().toString());
+        } catch (NoSuchKeyException e) {
+          return Optional.of("");
+        } catch (RuntimeException e) {
+          log.warn("Cache janitor can't check: {} cause: {}", k, e.getMessage());
+          return Optional.empty();
+        }
+      });
+    }
+
+    void delete(S3Object object, Kind kind) {
+      pending.add(object);
+      pendingKinds.put(object.key(), kind);
+      if (pending.size() >= DELETE_BATCH_SIZE) flush();
+    }
+
+    void flush() {
+      if (pending.isEmpty()) return;
+      rateLimiter.acquire();
+      var objects = pending.stream().map(o -> ObjectIdentifier.builder().key(o.key()).build()).toList();
+      var response = s3Client.getS3Client().deleteObjects(DeleteObjectsRequest.builder().bucket(bucket)
+        .delete(Delete.builder().objects(objects).quiet(true).build()).build());
+      var errors = new HashSet<String>();
+      response.errors().forEach(error -> {
+        errors.add(error.key());
+        log.warn("Cache janitor failed to delete: {} cause: {}", error.key(), error.message());
+      });
+      failures.addAndGet(errors.size());
+      pending.stream().filter(o -> !errors.contains(o.key())).forEach(o -> {
+        var kind = pendingKinds.get(o.key());
+        deleted.merge(kind, 1L, Long::sum);
+        S3CacheJanitor.this.deleted.get(kind).incrementAndGet();
+        reclaimedBytes += o.size();
+        S3CacheJanitor.this.reclaimedBytes.addAndGet(o.size());
+      });
+      pending.clear();
+      pendingKinds.clear();
+    }
+  }
+
+  public Map<String, Object> getMetrics() {
+    var values = new TreeMap<String, Object>();
+    values.put("runs", runs.get());
+    values.put("failures", failures.get());
+    values.put("reclaimedBytes", reclaimedBytes.get());
+    deleted.forEach((kind, count) -> values.put(kind.name(), count.get()));
+    Optional.ofNullable(lastResult.get()).ifPresent(result -> values.put("lastRun", result));
+    return values;
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+}
@@ -2,43 +2,113 @@ package bio.ferlab.clin.qlinme.utils;
 
 import bio.ferlab.clin.qlinme.cients.S3Client;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import lombok.RequiredArgsConstructor;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.model.*;
 
+import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+/**
+ * Two tiers: a bounded in-memory cache of deserialized values (LRU by weight = uncompressed serialized size) in front of S3.
+ * Values are shared between callers and must not be mutated.
+ * Writes are visible in memory immediately and written to S3 in background (write-behind), except the ones under
+ * a lease: the other nodes wait for that one.
+ */
 @Slf4j
-@RequiredArgsConstructor
 public class S3TimedCache {
 
+  private static final int MAX_CONCURRENT_REQUESTS = 20;
+  private static final String EXPIRES_AT = "expires-at";  // x-amz-meta-expires-at, epoch millis
+  private static final long LEASE_MS = 30_000;
+  private static final long LEASE_POLL_MS = 100;
+  private static final double REFRESH_AHEAD = 0.75;  // a shared entry is refreshed under lease at 3/4 of its TTL
+
   private final S3Client s3Client;
   private final String bucket;
-  private final ObjectMapper objectMapper;
+  private final CacheCodec codec;
   private final int cacheTimeoutInHour;
+  private final Duration staleGrace;
+  private final WriteBehind writeBehind;
+  private final Semaphore permits = new Semaphore(MAX_CONCURRENT_REQUESTS);
+  private final Cache<String, LocalEntry> local;
+  private final AtomicLong localHits = new AtomicLong();
+  private final AtomicLong localMisses = new AtomicLong();
+
+  private record LocalEntry(Object value, Instant writtenAt, int weight) {
+  }
+
+  public S3TimedCache(S3Client s3Client, String bucket, CacheCodec codec, int cacheTimeoutInHour, long localMaxBytes, Duration staleGrace,
+                      WriteBehind writeBehind) {
+    this.s3Client = s3Client;
+    this.bucket = bucket;
+    this.codec = codec;
+    this.cacheTimeoutInHour = cacheTimeoutInHour;
+    this.staleGrace = staleGrace;
+    this.writeBehind = writeBehind;
+    this.local = CacheBuilder.newBuilder()
+      .maximumWeight(localMaxBytes)
+      .weigher((String key, LocalEntry entry) -> entry.weight())
+      .expireAfterWrite(Duration.ofHours(cacheTimeoutInHour))
+      .recordStats()
+      .build();
+  }
 
-  private boolean isExpired(String key) {
+  // one conditional GET: S3 answers 304 without body if the entry is older than the TTL, expiry written by put() is
+  // read from the metadata of the same response (entries written before have none, only the TTL applies)
+  private Optional<ResponseBytes<GetObjectResponse>> getIfNotExpired(String key, Duration ttl) {
     try {
-      var lastModified = s3Client.getS3Client().headObject(HeadObjectRequest.builder().bucket(bucket).key(buildCacheKey(key)).build()).lastModified();
-      var expirationDateTime = lastModified.plus(this.cacheTimeoutInHour, ChronoUnit.HOURS);
-      return Instant.now().isAfter(expirationDateTime);
+      var now = Instant.now();
+      var response = s3Client.getS3Client().getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(buildCacheKey(key))
+        .ifModifiedSince(now.minus(ttl)).build());
+      var expiresAt = Optional.ofNullable(response.response().metadata().get(EXPIRES_AT)).map(Long::parseLong).map(Instant::ofEpochMilli);
+      return expiresAt.filter(now::isAfter).isPresent() ? Optional.empty() : Optional.of(response);
     } catch (NoSuchKeyException e) {
-      return true;
+      return Optional.empty();
+    } catch (S3Exception e) {
+      if (e.statusCode() == S3Client.NOT_MODIFIED) return Optional.empty();
+      throw e;
     }
   }
 
   public <T> Optional<T> get(String key, TypeReference<T> t) {
-    if (isExpired(key)) {
+    return get(key, t, Duration.ofHours(cacheTimeoutInHour));
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> Optional<T> get(String key, TypeReference<T> t, Duration ttl) {
+    return getEntry(key, t, ttl).map(entry -> (T) entry.value());
+  }
+
+  private <T> Optional<LocalEntry> getEntry(String key, TypeReference<T> t, Duration ttl) {
+    var entry = local.getIfPresent(key);
+    if (entry != null && Instant.now().isBefore(entry.writtenAt().plus(ttl))) {
+      localHits.incrementAndGet();
+      return Optional.of(entry);
+    }
+    localMisses.incrementAndGet();
+    var response = getIfNotExpired(key, ttl);
+    if (response.isEmpty()) {
       return Optional.empty();
     } else {
       try {
-        return Optional.of(objectMapper.readValue(s3Client.getS3Client().getObject(GetObjectRequest.builder().bucket(bucket).key(buildCacheKey(key)).build()), t));
+        var bytes = response.get().asByteArray();
+        var decoded = new LocalEntry(codec.decode(bytes, t), response.get().response().lastModified(), codec.rawSize(bytes));
+        local.put(key, decoded);
+        return Optional.of(decoded);
       } catch (Exception e) {
         log.warn("Invalidate cache: {} cause: {}", key, e.getMessage());
+        local.invalidate(key);
         this.s3Client.getS3Client().deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(buildCacheKey(key)).build());
         return Optional.empty();
       }
@@ -46,15 +116,188 @@ public class S3TimedCache {
   }
 
   public <T> T put(String key, T value) {
-    try {
-    s3Client.getS3Client().putObject(PutObjectRequest.builder().bucket(bucket).key(buildCacheKey(key)).build(), RequestBody.fromString(objectMapper.writeValueAsString(value)));
+    return put(key, value, Duration.ofHours(cacheTimeoutInHour));
+  }
+
+  public <T> T put(String key, T value, Duration ttl) {
+    var bytes = codec.encode(value);
+    var expiresAt = String.valueOf(Instant.now().plus(ttl).toEpochMilli());
+    local.put(key, new LocalEntry(value, Instant.now(), codec.rawSize(bytes)));
+    writeBehind.submit(buildCacheKey(key), () -> write(key, bytes, expiresAt));
+    return value;
+  }
+
+  private <T> T putNow(String key, T value, Duration ttl) {
+    var bytes = codec.encode(value);
+    write(key, bytes, String.valueOf(Instant.now().plus(ttl).toEpochMilli()));
+    local.put(key, new LocalEntry(value, Instant.now(), codec.rawSize(bytes)));
     return value;
+  }
+
+  private void write(String key, byte[] bytes, String expiresAt) {
+    s3Client.getS3Client().putObject(PutObjectRequest.builder().bucket(bucket).key(buildCacheKey(key)).metadata(Map.of(EXPIRES_AT, expiresAt)).build(),
+      RequestBody.fromBytes(bytes));
+  }
+
+  /**
+   * Shared entries (same key for every node) are refreshed by one node only: the first to create the lease object
+   * (conditional PUT If-None-Match: *) loads the value, the others serve the current value (still valid, or expired
+   * within the grace window) or wait for the new one. Entries are refreshed ahead, at 3/4 of their TTL, and a no-cache
+   * call takes the lease too: only a value written since the call is used. A lease expires after 30s so a crashed
+   * holder is taken over (conditional PUT If-Match).
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T getOrRefresh(String key, TypeReference<T> t, boolean allowCache, Supplier<T> loader) {
+    var start = System.currentTimeMillis();
+    var ttl = Duration.ofHours(cacheTimeoutInHour);
+    var refreshAhead = Duration.ofMillis((long) (ttl.toMillis() * REFRESH_AHEAD));
+    var deadline = start + 2 * LEASE_MS;
+    while (System.currentTimeMillis() < deadline) {
+      var current = getEntry(key, t, allowCache ? ttl : writtenSince(start));
+      if (current.isPresent() && isYoungerThan(current.get(), refreshAhead)) return (T) current.get().value();
+      if (tryLease(key)) {
+        try {
+          // the previous holder may have written the entry just before releasing the lease
+          return (T) getEntry(key, t, allowCache ? refreshAhead : writtenSince(start)).map(LocalEntry::value)
+            .orElseGet(() -> putNow(key, loader.get(), ttl));
+        } finally {
+          releaseLease(key);
+        }
+      }
+      if (current.isPresent()) return (T) current.get().value();  // refreshed ahead by another node
+      var stale = allowCache ? getStale(key, t) : Optional.<T>empty();
+      if (stale.isPresent()) return stale.get();
+      sleep(LEASE_POLL_MS);
+    }
+    log.warn("Cache lease of {} never released, load without lease", key);
+    return put(key, loader.get());
+  }
+
+  // S3 Last-Modified has a precision of one second, a value written in the same second is accepted
+  private static Duration writtenSince(long start) {
+    return Duration.ofMillis(System.currentTimeMillis() - start).plusSeconds(1);
+  }
+
+  private static boolean isYoungerThan(LocalEntry entry, Duration age) {
+    return Instant.now().isBefore(entry.writtenAt().plus(age));
+  }
+
+  private boolean tryLease(String key) {
+    var leaseKey = buildLeaseKey(key);
+    var expiresAt = String.valueOf(System.currentTimeMillis() + LEASE_MS);
+    try {
+      putLease(leaseKey, expiresAt, "If-None-Match", "*");
+      return true;
+    } catch (S3Exception e) {
+      if (!isConditionFailed(e)) throw e;
+    }
+    try {
+      var current = s3Client.getS3Client().getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(leaseKey).build());
+      if (Long.parseLong(current.asUtf8String()) > System.currentTimeMillis()) return false;
+      log.warn("Take over expired cache lease: {}", key);
+      putLease(leaseKey, expiresAt, "If-Match", current.response().eTag());
+      return true;
+    } catch (NoSuchKeyException e) {
+      return false;  // released meanwhile, the entry is probably fresh now
+    } catch (S3Exception e) {
+      if (!isConditionFailed(e)) throw e;
+      return false;  // another node took it over first
+    }
+  }
+
+  private void putLease(String leaseKey, String expiresAt, String condition, String value) {
+    s3Client.getS3Client().putObject(PutObjectRequest.builder().bucket(bucket).key(leaseKey)
+      .overrideConfiguration(o -> o.putHeader(condition, value)).build(), RequestBody.fromString(expiresAt));
+  }
+
+  private void releaseLease(String key) {
+    try {
+      s3Client.getS3Client().deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(buildLeaseKey(key)).build());
     } catch (Exception e) {
+      log.warn("Failed to release cache lease: {} cause: {}", key, e.getMessage());  // expires anyway
+    }
+  }
+
+  private boolean isConditionFailed(S3Exception e) {
+    // 409 if a concurrent conditional write is in progress on the same key
+    return e.statusCode() == S3Client.PRECONDITION_FAILED || e.statusCode() == S3Client.CONFLICT;
+  }
+
+  // expired entry still within the grace window
+  private <T> Optional<T> getStale(String key, TypeReference<T> t) {
+    try {
+      var response = s3Client.getS3Client().getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(buildCacheKey(key)).build());
+      var expiresAt = Optional.ofNullable(response.response().metadata().get(EXPIRES_AT)).map(Long::parseLong).map(Instant::ofEpochMilli)
+        .orElse(response.response().lastModified().plus(Duration.ofHours(cacheTimeoutInHour)));
+      if (Instant.now().isAfter(expiresAt.plus(staleGrace))) return Optional.empty();
+      return Optional.of(codec.decode(response.asByteArray(), t));
+    } catch (NoSuchKeyException e) {
+      return Optional.empty();
+    } catch (RuntimeException e) {
+      log.warn("Ignore stale cache: {} cause: {}", key, e.getMessage());  // unreadable, same as missing
+      return Optional.empty();
+    }
+  }
+
+  private void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       throw new RuntimeException(e);
     }
   }
 
+  public <T> Map<String, T> getAll(List<String> keys, TypeReference<T> t) {
+    return getAll(keys, t, Duration.ofHours(cacheTimeoutInHour));
+  }
+
+  // entries are read in parallel, only the found (and not expired) ones are returned
+  public <T> Map<String, T> getAll(List<String> keys, TypeReference<T> t, Duration ttl) {
+    var values = new HashMap<String, T>();
+    if (keys.isEmpty()) return values;
+    try (var scope = new TaskScope(permits)) {
+      var results = keys.stream().map(key -> scope.fork(() -> get(key, t, ttl))).toList();
+      scope.join();
+      for (int i = 0; i < keys.size(); i++) {
+        var key = keys.get(i);
+        results.get(i).get().ifPresent(value -> values.put(key, value));
+      }
+    }
+    return values;
+  }
+
+  public <T> Map<String, T> putAll(Map<String, T> values) {
+    return putAll(values, Duration.ofHours(cacheTimeoutInHour));
+  }
+
+  public <T> Map<String, T> putAll(Map<String, T> values, Duration ttl) {
+    values.forEach((key, value) -> put(key, value, ttl));
+    return values;
+  }
+
+  // removed from memory now and from S3 in background, after any pending write of the same key
+  public void invalidateAll(List<String> keys) {
+    keys.forEach(key -> {
+      local.invalidate(key);
+      writeBehind.submit(buildCacheKey(key), () ->
+        s3Client.getS3Client().deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(buildCacheKey(key)).build()));
+    });
+  }
+
+  public Map<String, Object> getMetrics() {
+    return Map.of(
+      "localHits", localHits.get(),
+      "localMisses", localMisses.get(),
+      "localEvictions", local.stats().evictionCount(),
+      "localSize", local.size());
+  }
+
   private String buildCacheKey(String key) {
     return S3Client.CACHE_FOLDER+"/"+key;
   }
+
+  private String buildLeaseKey(String key) {
+    return buildCacheKey(key)+".lease";
+  }
 }
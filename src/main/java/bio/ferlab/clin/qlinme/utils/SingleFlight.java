@@ -0,0 +1,48 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Collapse concurrent calls sharing the same key into one execution, every caller gets the same result (or exception).
+ * Different keys never block each other and waiting callers park (no monitor) so virtual threads aren't pinned.
+ */
+public class SingleFlight {
+
+  private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+  @SuppressWarnings("unchecked")
+  public <T> T execute(String key, Supplier<T> supplier) {
+    var call = new CompletableFuture<>();
+    var existing = inFlight.putIfAbsent(key, call);
+    if (existing != null) {
+      return (T) join(existing);
+    }
+    try {
+      var value = supplier.get();
+      call.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      call.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, call);
+    }
+  }
+
+  public int inFlight() {
+    return inFlight.size();
+  }
+
+  private Object join(CompletableFuture<Object> call) {
+    try {
+      return call.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException re) throw re;
+      if (e.getCause() instanceof Error er) throw er;
+      throw e;
+    }
+  }
+}
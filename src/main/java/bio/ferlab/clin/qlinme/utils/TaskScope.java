@@ -0,0 +1,90 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Run independent tasks concurrently on virtual threads, the first failure cancels (interrupts) the other tasks
+ * and is re-thrown by join(). Tasks never outlive the scope: close() cancels whatever is still running.
+ * <pre>
+ * try (var scope = new TaskScope()) {
+ *   var a = scope.fork(() -> ...);
+ *   var b = scope.fork(() -> ...);
+ *   scope.join();
+ *   return combine(a.get(), b.get());
+ * }
+ * </pre>
+ */
+public class TaskScope implements AutoCloseable {
+
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final List<Future<?>> futures = new ArrayList<>();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  private final Semaphore permits;
+
+  public TaskScope() {
+    this(null);
+  }
+
+  public TaskScope(Semaphore permits) {
+    this.permits = permits;
+  }
+
+  public <T> Supplier<T> fork(Callable<T> task) {
+    if (failure.get() != null) {
+      return () -> { throw new IllegalStateException("Task scope already failed"); };
+    }
+    Future<T> future;
+    try {
+      future = executor.submit(() -> {
+        if (permits != null) permits.acquire();
+        try {
+          // checked again here: a sibling may have failed between the check in fork() and the submit
+          if (failure.get() != null) throw new CancellationException("Task scope already failed");
+          return task.call();
+        } catch (Throwable e) {
+          if (failure.compareAndSet(null, e)) {
+            executor.shutdownNow();
+          }
+          throw e;
+        } finally {
+          if (permits != null) permits.release();
+        }
+      });
+    } catch (RejectedExecutionException e) { // another task failed meanwhile
+      return () -> { throw new IllegalStateException("Task scope already failed"); };
+    }
+    futures.add(future);
+    return future::resultNow;
+  }
+
+  public TaskScope join() {
+    try {
+      for (var future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException | CancellationException e) {
+          // first failure is kept and re-thrown below
+        }
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    var e = failure.get();
+    if (e instanceof RuntimeException re) throw re;
+    if (e instanceof Error er) throw er;
+    if (e != null) throw new RuntimeException(e);
+    return this;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    executor.close();
+  }
+}
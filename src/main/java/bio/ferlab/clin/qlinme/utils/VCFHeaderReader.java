@@ -0,0 +1,172 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read the sample IDs (#CHROM line) of a .vcf.gz by byte ranges: the first range usually contains the whole header,
+ * more (doubling) ranges are requested only if the header is longer. The gzip members (BGZF blocks) are inflated
+ * one after the other as the bytes arrive and the lines are parsed byte by byte, the ## lines are skipped without
+ * being kept in memory.
+ */
+public class VCFHeaderReader {
+
+  public interface RangeReader {
+    byte[] read(long offset, int length);
+  }
+
+  private static final int FIRST_RANGE = 64 * 1024;
+  private static final int MAX_RANGE = 1024 * 1024;
+  private static final int MAX_HEADER = 32 * 1024 * 1024;  // compressed, no #CHROM that far is a broken VCF
+  private static final byte[] CHROM = "#CHROM".getBytes(StandardCharsets.US_ASCII);
+  private static final int SAMPLES_COLUMN = 9;  // #CHROM POS ID REF ALT QUAL FILTER INFO FORMAT sample1 ...
+
+  private final RangeReader reader;
+  private final long size;
+  private byte[] in = new byte[0];
+  private int pos = 0;
+  private int limit = 0;
+  private long fetched = 0;
+  private int rangeSize = FIRST_RANGE;
+  private byte[] line = new byte[1024];
+  private int lineLength = 0;
+  private boolean skipLine = false;
+  private List<String> samples = null;
+
+  private VCFHeaderReader(RangeReader reader, long size) {
+    this.reader = reader;
+    this.size = size;
+  }
+
+  public static List<String> readSampleIDs(RangeReader reader, long size) {
+    return new VCFHeaderReader(reader, size).read();
+  }
+
+  private List<String> read() {
+    var inflater = new Inflater(true);
+    var out = new byte[64 * 1024];
+    try {
+      while (samples == null) {
+        if (!ensure(1)) throw new IllegalStateException("No #CHROM line found");
+        skipMemberHeader();
+        inflater.reset();
+        inflater.setInput(in, pos, limit - pos);
+        while (!inflater.finished() && samples == null) {
+          var count = inflater.inflate(out);
+          parse(out, count);
+          if (count == 0 && inflater.needsInput()) {
+            pos = limit;
+            if (!ensure(1)) throw new IllegalStateException("Truncated gzip member");
+            inflater.setInput(in, pos, limit - pos);
+          }
+        }
+        pos = limit - inflater.getRemaining();
+        if (samples == null) {
+          require(8);  // CRC32 + ISIZE
+          pos += 8;
+        }
+      }
+      return samples;
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Invalid gzip data: " + e.getMessage(), e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  // gzip member header (RFC 1952), BGZF blocks have the BC extra field
+  private void skipMemberHeader() {
+    require(10);
+    if ((in[pos] & 0xFF) != 0x1F || (in[pos + 1] & 0xFF) != 0x8B || in[pos + 2] != 8) {
+      throw new IllegalStateException("Not a gzip member at: " + (fetched - (limit - pos)));
+    }
+    var flags = in[pos + 3];
+    pos += 10;
+    if ((flags & 0x04) != 0) {  // FEXTRA
+      require(2);
+      var extraLength = (in[pos] & 0xFF) | (in[pos + 1] & 0xFF) << 8;
+      require(2 + extraLength);
+      pos += 2 + extraLength;
+    }
+    if ((flags & 0x08) != 0) skipZeroTerminated();  // FNAME
+    if ((flags & 0x10) != 0) skipZeroTerminated();  // FCOMMENT
+    if ((flags & 0x02) != 0) {  // FHCRC
+      require(2);
+      pos += 2;
+    }
+  }
+
+  private void skipZeroTerminated() {
+    do {
+      require(1);
+    } while (in[pos++] != 0);
+  }
+
+  private void parse(byte[] data, int count) {
+    for (int i = 0; i < count && samples == null; i++) {
+      var b = data[i];
+      if (skipLine) {
+        if (b == '\n') {
+          skipLine = false;
+          lineLength = 0;
+        }
+      } else if (b == '\n') {
+        endOfLine();
+      } else {
+        if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+        line[lineLength++] = b;
+        if (lineLength == 1 && b != '#') throw new IllegalStateException("No #CHROM line found");
+        if (lineLength == 2 && b == '#') skipLine = true;  // ## meta-information
+      }
+    }
+  }
+
+  private void endOfLine() {
+    if (lineLength == 0) return;
+    if (!startsWith(CHROM)) throw new IllegalStateException("No #CHROM line found");
+    var length = line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+    samples = new ArrayList<>();
+    int column = 0;
+    int start = 0;
+    for (int i = 0; i <= length; i++) {
+      if (i == length || line[i] == '\t') {
+        if (column >= SAMPLES_COLUMN) samples.add(new String(line, start, i - start, StandardCharsets.UTF_8));
+        column++;
+        start = i + 1;
+      }
+    }
+  }
+
+  private boolean startsWith(byte[] prefix) {
+    return lineLength >= prefix.length && Arrays.equals(line, 0, prefix.length, prefix, 0, prefix.length);
+  }
+
+  private void require(int count) {
+    if (!ensure(count)) throw new IllegalStateException("Truncated gzip header");
+  }
+
+  // at least count bytes after pos, false if the file is shorter
+  private boolean ensure(int count) {
+    while (limit - pos < count) {
+      if (fetched >= size) return false;
+      if (fetched >= MAX_HEADER) throw new IllegalStateException("No #CHROM line in the first " + MAX_HEADER + " bytes");
+      var length = (int) Math.min(rangeSize, size - fetched);
+      var bytes = reader.read(fetched, length);
+      if (bytes.length == 0) return false;
+      var remaining = limit - pos;
+      var next = new byte[remaining + bytes.length];
+      System.arraycopy(in, pos, next, 0, remaining);
+      System.arraycopy(bytes, 0, next, remaining, bytes.length);
+      in = next;
+      pos = 0;
+      limit = next.length;
+      fetched += bytes.length;
+      rangeSize = Math.min(rangeSize * 2, MAX_RANGE);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,243 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read a whole .vcf.gz once and check it can be imported: every BGZF block inflates to its ISIZE with the right CRC,
+ * the file ends with the BGZF EOF block (a truncated upload doesn't) and every variant line has as many columns as
+ * the #CHROM line. Blocks are inflated in parallel (CPU bound, one thread per core shared by every scan) while they
+ * are read, lines are checked in order. Memory is constant: at most a window of blocks is in flight.
+ */
+@Slf4j
+public class VCFIntegrityScanner implements AutoCloseable {
+
+  public record Result(long blocks, long lines, long compressedBytes, long uncompressedBytes, long durationMs, List<String> errors) {
+    public long mbPerSecond() {
+      return durationMs > 0 ? compressedBytes * 1000 / durationMs / (1024 * 1024) : 0;
+    }
+  }
+
+  private static final int MAX_BLOCK_SIZE = 64 * 1024;  // BGZF limit, compressed and uncompressed
+  private static final int MAX_ERRORS = 10;
+  private static final byte[] CHROM = "#CHROM".getBytes(StandardCharsets.US_ASCII);
+  private static final int CHROM_PREFIX = CHROM.length;
+  private static final byte[] EOF_BLOCK = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 0x42, 0x43, 2, 0, 0x1b, 0,
+    3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+  private final ExecutorService inflaters;
+  private final int window;
+  private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+  private final AtomicLong scans = new AtomicLong();
+  private final AtomicLong scannedBytes = new AtomicLong();
+  private final AtomicLong scanMs = new AtomicLong();
+
+  public VCFIntegrityScanner(int threads) {
+    this.inflaters = Executors.newFixedThreadPool(threads, Thread.ofPlatform().daemon().name("vcf-inflater-", 0).factory());
+    this.window = threads * 4;
+  }
+
+  private static class Block {
+    final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+    final byte[] data = new byte[MAX_BLOCK_SIZE];
+    int compressedLength;
+    int dataLength;
+    long offset;
+    String error;
+  }
+
+  public Result scan(String name, InputStream in) throws IOException {
+    var start = System.currentTimeMillis();
+    var pool = new ArrayDeque<Block>();
+    var inFlight = new ArrayDeque<Future<Block>>();
+    var lines = new Lines();
+    long blocks = 0;
+    long offset = 0;
+    long uncompressed = 0;
+    Block last = null;
+    try {
+      while (!lines.fatal) {
+        var block = Optional.ofNullable(pool.poll()).orElseGet(Block::new);
+        block.offset = offset;
+        block.error = null;
+        if (!readBlock(in, block, lines)) break;
+        offset += block.compressedLength;
+        blocks++;
+        inFlight.add(inflaters.submit(() -> inflate(block)));
+        if (inFlight.size() >= window) {
+          last = check(inFlight.poll(), lines, pool);
+          uncompressed += last.dataLength;
+        }
+      }
+      while (!inFlight.isEmpty()) {
+        last = check(inFlight.poll(), lines, pool);
+        uncompressed += last.dataLength;
+      }
+    } finally {
+      inFlight.forEach(f -> f.cancel(true));
+    }
+    lines.end();
+    if (!lines.fatal && (last == null || last.compressedLength != EOF_BLOCK.length || !Arrays.equals(last.compressed, 0, EOF_BLOCK.length, EOF_BLOCK, 0, EOF_BLOCK.length))) {
+      lines.error("BGZF EOF block is missing, the file is truncated");
+    }
+    var result = new Result(blocks, lines.count, offset, uncompressed, System.currentTimeMillis() - start, List.copyOf(lines.errors));
+    scans.incrementAndGet();
+    scannedBytes.addAndGet(offset);
+    scanMs.addAndGet(result.durationMs());
+    log.info("Deep scan of {}: {} blocks {} lines {} MB in {}ms ({} MB/s) errors: {}", name, blocks, lines.count,
+      offset / (1024 * 1024), result.durationMs(), result.mbPerSecond(), result.errors().size());
+    return result;
+  }
+
+  private Block check(Future<Block> future, Lines lines, Deque<Block> pool) throws IOException {
+    try {
+      var block = future.get();
+      if (block.error != null) {
+        lines.fatal(block.error);  // lines after a broken block can't be trusted
+      } else if (!lines.fatal) {
+        lines.parse(block.data, block.dataLength);
+      }
+      pool.add(block);
+      return block;
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+
+  // BGZF block: gzip member with the BC extra field giving its size, false at the end of the stream
+  private boolean readBlock(InputStream in, Block block, Lines lines) throws IOException {
+    var header = in.readNBytes(block.compressed, 0, 12);
+    if (header == 0) return false;
+    var b = block.compressed;
+    if (header < 12 || (b[0] & 0xFF) != 0x1F || (b[1] & 0xFF) != 0x8B || b[2] != 8 || (b[3] & 0x04) == 0) {
+      return lines.fatal(header < 12 ? "Truncated BGZF block at: " + block.offset : "Not a BGZF block at: " + block.offset);
+    }
+    var extraLength = (b[10] & 0xFF) | (b[11] & 0xFF) << 8;
+    if (extraLength > MAX_BLOCK_SIZE - 12 - 8) {  // the header and trailer must fit in the block
+      return lines.fatal("Not a BGZF block at: " + block.offset);
+    }
+    if (in.readNBytes(b, 12, extraLength) < extraLength) {
+      return lines.fatal("Truncated BGZF block at: " + block.offset);
+    }
+    var blockSize = -1;
+    for (int i = 12; i + 4 <= 12 + extraLength; i += 4 + ((b[i + 2] & 0xFF) | (b[i + 3] & 0xFF) << 8)) {
+      var subfieldLength = (b[i + 2] & 0xFF) | (b[i + 3] & 0xFF) << 8;
+      if (b[i] == 'B' && b[i + 1] == 'C' && subfieldLength == 2 && i + 6 <= 12 + extraLength) {
+        blockSize = ((b[i + 4] & 0xFF) | (b[i + 5] & 0xFF) << 8) + 1;
+      }
+    }
+    if (blockSize < 12 + extraLength + 8 || blockSize > MAX_BLOCK_SIZE) {
+      return lines.fatal("Not a BGZF block at: " + block.offset);
+    }
+    var remaining = blockSize - 12 - extraLength;
+    if (in.readNBytes(b, 12 + extraLength, remaining) < remaining) {
+      return lines.fatal("Truncated BGZF block at: " + block.offset);
+    }
+    block.compressedLength = blockSize;
+    return true;
+  }
+
+  private Block inflate(Block block) {
+    var b = block.compressed;
+    var length = block.compressedLength;
+    var dataStart = 12 + ((b[10] & 0xFF) | (b[11] & 0xFF) << 8);
+    var expectedCrc = readInt(b, length - 8) & 0xFFFFFFFFL;
+    var expectedSize = readInt(b, length - 4);
+    var inflater = this.inflater.get();
+    inflater.reset();
+    inflater.setInput(b, dataStart, length - 8 - dataStart);
+    try {
+      block.dataLength = inflater.inflate(block.data);
+      var crc = new CRC32();
+      crc.update(block.data, 0, block.dataLength);
+      if (!inflater.finished() || block.dataLength != expectedSize || crc.getValue() != expectedCrc) {
+        block.error = "Corrupted BGZF block at: " + block.offset;
+      }
+    } catch (DataFormatException e) {
+      block.error = "Corrupted BGZF block at: " + block.offset + " " + e.getMessage();
+    }
+    return block;
+  }
+
+  private static int readInt(byte[] b, int pos) {
+    return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8 | (b[pos + 2] & 0xFF) << 16 | (b[pos + 3] & 0xFF) << 24;
+  }
+
+  // column count of every line, state kept across blocks
+  private static class Lines {
+    final List<String> errors = new ArrayList<>();
+    final byte[] prefix = new byte[CHROM_PREFIX];
+    long count = 0;
+    int prefixLength = 0;
+    int columns = 1;
+    int expectedColumns = -1;
+    boolean fatal = false;
+
+    void parse(byte[] data, int length) {
+      for (int i = 0; i < length; i++) {
+        var b = data[i];
+        if (b == '\n') {
+          endOfLine();
+        } else if (b == '\t') {
+          columns++;
+        } else if (prefixLength < CHROM_PREFIX) {
+          prefix[prefixLength++] = b;
+        }
+      }
+    }
+
+    void end() {
+      if (!fatal && (prefixLength > 0 || columns > 1)) endOfLine();  // last line without \n
+    }
+
+    void endOfLine() {
+      count++;
+      if (prefixLength > 0 && prefix[0] == '#') {
+        if (Arrays.equals(prefix, 0, prefixLength, CHROM, 0, CHROM.length)) {
+          expectedColumns = columns;
+        }
+      } else if (expectedColumns < 0) {
+        fatal("Line " + count + ": variant before the #CHROM line");
+      } else if (columns != expectedColumns) {
+        error("Line " + count + ": " + columns + " columns, expected " + expectedColumns);
+      }
+      prefixLength = 0;
+      columns = 1;
+    }
+
+    void error(String error) {
+      if (errors.size() < MAX_ERRORS) errors.add(error);
+    }
+
+    boolean fatal(String error) {
+      error(error);
+      fatal = true;
+      return false;
+    }
+  }
+
+  public Map<String, Object> getMetrics() {
+    var values = new TreeMap<String, Object>();
+    values.put("scans", scans.get());
+    values.put("scannedBytes", scannedBytes.get());
+    values.put("mbPerSecond", scanMs.get() > 0 ? scannedBytes.get() * 1000 / scanMs.get() / (1024 * 1024) : 0);
+    return values;
+  }
+
+  @Override
+  public void close() {
+    inflaters.shutdownNow();
+  }
+}
@@ -0,0 +1,170 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Best effort writes (cache population) done in background so the caller doesn't wait for them:
+ * <ul>
+ *   <li>bounded: when full new keys are dropped (counted), a cache entry missing is only a future miss</li>
+ *   <li>coalesced by key: a pending write is replaced by the newer one, writes of the same key never run concurrently</li>
+ *   <li>flushed by batches on virtual threads as soon as writes are pending</li>
+ *   <li>close() drains what is pending, to call on shutdown</li>
+ * </ul>
+ */
+@Slf4j
+public class WriteBehind implements AutoCloseable {
+
+  private static final long DRAIN_TIMEOUT_MS = 10_000;
+
+  private final int capacity;
+  private final int batchSize;
+  private final Semaphore permits;
+  private final LinkedHashMap<String, Runnable> pending = new LinkedHashMap<>();
+  private final Set<String> inFlight = new HashSet<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile boolean closed = false;
+
+  public WriteBehind(int capacity, int batchSize, int concurrency) {
+    this.capacity = capacity;
+    this.batchSize = batchSize;
+    this.permits = new Semaphore(concurrency);
+    Thread.ofVirtual().name("write-behind").start(this::flushLoop);
+  }
+
+  // false if dropped because the queue is full (or closed)
+  public boolean submit(String key, Runnable write) {
+    lock.lock();
+    try {
+      submitted.incrementAndGet();
+      if (pending.containsKey(key)) {
+        coalesced.incrementAndGet();
+        pending.remove(key);  // re-inserted last, the newest value is written after the others
+      } else if (closed || pending.size() >= capacity) {
+        dropped.incrementAndGet();
+        log.debug("Write behind full, drop: {}", key);
+        return false;
+      }
+      pending.put(key, write);
+      changed.signalAll();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // wait until every write submitted so far is done
+  public boolean flush(long timeoutMs) {
+    var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    lock.lock();
+    try {
+      while (!pending.isEmpty() || !inFlight.isEmpty()) {
+        var remaining = deadline - System.nanoTime();
+        if (remaining <= 0) return false;
+        changed.awaitNanos(remaining);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      var batch = take();
+      if (batch == null) return;
+      try (var scope = new TaskScope(permits)) {
+        batch.forEach((key, write) -> scope.fork(() -> write(key, write)));
+        scope.join();
+      }
+    }
+  }
+
+  // next writes whose key isn't already being written, null once closed and empty
+  private Map<String, Runnable> take() {
+    lock.lock();
+    try {
+      var batch = new LinkedHashMap<String, Runnable>();
+      while (true) {
+        var it = pending.entrySet().iterator();
+        while (it.hasNext() && batch.size() < batchSize) {
+          var entry = it.next();
+          if (!inFlight.contains(entry.getKey())) {
+            batch.put(entry.getKey(), entry.getValue());
+            inFlight.add(entry.getKey());
+            it.remove();
+          }
+        }
+        if (!batch.isEmpty()) return batch;
+        if (closed && pending.isEmpty()) return null;
+        changed.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean write(String key, Runnable write) {
+    try {
+      write.run();
+      written.incrementAndGet();
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      log.warn("Write behind failed: {} cause: {}", key, e.getMessage());
+    } finally {
+      lock.lock();
+      try {
+        inFlight.remove(key);
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return true;
+  }
+
+  public Map<String, Object> getMetrics() {
+    var values = new TreeMap<String, Object>();
+    values.put("submitted", submitted.get());
+    values.put("coalesced", coalesced.get());
+    values.put("dropped", dropped.get());
+    values.put("written", written.get());
+    values.put("failed", failed.get());
+    lock.lock();
+    try {
+      values.put("pending", pending.size() + inFlight.size());
+    } finally {
+      lock.unlock();
+    }
+    return values;
+  }
+
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (!flush(DRAIN_TIMEOUT_MS)) {
+      log.warn("Write behind not drained, lost: {}", getMetrics().get("pending"));
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package bio.ferlab.clin.qlinme.cients;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import org.hl7.fhir.r4.model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Minimal local FHIR endpoint, serves canned resources and counts the requests received by path.
+ */
+class FakeFhirServer implements AutoCloseable {
+
+  static final FhirContext FHIR = FhirContext.forR4();
+
+  private final Javalin app;
+  private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+  private final Map<String, Function<Context, Resource>> handlers = new ConcurrentHashMap<>();
+  final List<String> queries = new ArrayList<>();
+  volatile long delayMs = 0;
+
+  FakeFhirServer() {
+    // first encodings aren't safe concurrently (lazy model scanning), warm up the shared context
+    FHIR.newJsonParser().encodeResourceToString(bundle(task("0", "batch", "0"), panels("MMG")));
+    app = Javalin.create(conf -> conf.showJavalinBanner = false)
+      .get("/fhir/<path>", this::handle)
+      .start(0);
+  }
+
+  FakeFhirServer on(String path, Function<Context, Resource> handler) {
+    handlers.put(path, handler);
+    return this;
+  }
+
+  String url() {
+    return "http://localhost:" + app.port() + "/fhir";
+  }
+
+  int hits(String path) {
+    return hits.getOrDefault(path, new AtomicInteger()).get();
+  }
+
+  private void handle(Context ctx) throws InterruptedException {
+    var path = ctx.pathParam("path");
+    hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+    synchronized (queries) {
+      queries.add(path + "?" + ctx.queryString());
+    }
+    if (delayMs > 0) Thread.sleep(delayMs);
+    var handler = handlers.get(path);
+    if (handler == null) {
+      ctx.status(404);
+    } else {
+      ctx.contentType("application/fhir+json").result(FHIR.newJsonParser().encodeResourceToString(handler.apply(ctx)));
+    }
+  }
+
+  static Bundle bundle(Resource... resources) {
+    var bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+    for (var resource : resources) {
+      bundle.addEntry().setResource(resource);
+    }
+    return bundle.setTotal(resources.length);
+  }
+
+  static Task task(String id, String batchId, String aliquotID) {
+    var task = new Task();
+    task.setId(id);
+    task.setGroupIdentifier(new Identifier().setValue(batchId));
+    var experiment = task.addExtension().setUrl("http://fhir.cqgc.ferlab.bio/StructureDefinition/sequencing-experiment");
+    experiment.addExtension().setUrl("labAliquotId").setValue(new StringType(aliquotID));
+    return task;
+  }
+
+  static CodeSystem panels(String... codes) {
+    var codeSystem = new CodeSystem();
+    codeSystem.setId("analysis-request-code");
+    for (var code : codes) {
+      codeSystem.addConcept().setCode(code);
+    }
+    return codeSystem;
+  }
+
+  @Override
+  public void close() {
+    app.stop();
+  }
+}
@@ -0,0 +1,108 @@
+package bio.ferlab.clin.qlinme.cients;
+
+import bio.ferlab.clin.qlinme.model.Metadata;
+import bio.ferlab.clin.qlinme.utils.DateUtils;
+import org.hl7.fhir.r4.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bundle joins: indexed (FhirClient) vs scanning the bundle for every resource (previous implementation).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class FhirClientBenchmark {
+
+  @Param({"100", "1000", "5000"})
+  public int size;
+
+  private Bundle serviceRequestsWithTasks;
+  private List<Patient> patients;
+  private List<Person> persons;
+
+  @Setup
+  public void setup() {
+    serviceRequestsWithTasks = new Bundle();
+    patients = new ArrayList<>();
+    persons = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      var sr = new ServiceRequest();
+      sr.setId("SR" + i);
+      sr.addIdentifier().setValue("LDM-SR-" + i);
+      serviceRequestsWithTasks.addEntry().setResource(sr);
+      var task = FakeFhirServer.task("T" + i, "batch_" + (i % 10), String.valueOf(i));
+      task.setFocus(new Reference("ServiceRequest/SR" + i));
+      serviceRequestsWithTasks.addEntry().setResource(task);
+
+      var patient = new Patient();
+      patient.setId("P" + i);
+      patient.addIdentifier().setValue("MRN-" + i).getType().addCoding().setCode("MR");
+      patient.setManagingOrganization(new Reference("Organization/CHUSJ"));
+      patients.add(patient);
+      var person = new Person();
+      person.setId("PE" + i);
+      person.addName().setFamily("Family" + i).addGiven("Given" + i);
+      person.addLink().setTarget(new Reference("Patient/P" + i));
+      persons.add(person);
+    }
+    Collections.shuffle(persons, new Random(0));
+  }
+
+  @Benchmark
+  public Map<String, List<String>> serviceRequestJoinIndexed() {
+    return FhirClient.extractBatchIDsByIdentifier(serviceRequestsWithTasks);
+  }
+
+  @Benchmark
+  public Map<String, List<String>> serviceRequestJoinScan() {
+    var byBatchID = new TreeMap<String, List<String>>();
+    serviceRequestsWithTasks.getEntry().forEach(e -> {
+      if (e.getResource() instanceof Task t) {
+        var focus = t.getFocus().getReference();
+        var sr = serviceRequestsWithTasks.getEntry().stream().filter(e2 -> e2.getResource() instanceof ServiceRequest s && ("ServiceRequest/"+s.getIdElement().getIdPart()).equals(focus)).map(e2 -> (ServiceRequest)e2.getResource()).findFirst().orElse(new ServiceRequest());
+        var batchId  = t.getGroupIdentifier().getValue();
+        byBatchID.computeIfAbsent(batchId, k -> new ArrayList<>());
+        byBatchID.get(batchId).add(sr.getIdentifierFirstRep().getValue());
+      }
+    });
+    return byBatchID;
+  }
+
+  @Benchmark
+  public List<Metadata.Patient> patientJoinIndexed() {
+    return FhirClient.extractPatientInfo(patients, persons);
+  }
+
+  @Benchmark
+  public List<Metadata.Patient> patientJoinScan() {
+    return patients.stream().map(patient -> {
+      var person = persons.stream().filter(p -> p.getLink().stream().anyMatch(l -> l.getTarget().getReference().equals("Patient/" + patient.getIdElement().getIdPart()))).findFirst().orElse(new Person());
+      return new Metadata.Patient(
+        Optional.ofNullable(person.getNameFirstRep()).map(HumanName::getGivenAsSingleString).orElse(null),
+        Optional.ofNullable(person.getNameFirstRep()).map(HumanName::getFamily).orElse(null),
+        Optional.ofNullable(person.getGender()).map(Enumerations.AdministrativeGender::toCode).orElse(null),
+        person.getIdentifier().stream().filter(i -> "JHN".equals(i.getType().getCodingFirstRep().getCode())).findFirst().map(Identifier::getValue).orElse(null),
+        Optional.ofNullable(person.getBirthDate()).map(d -> DateUtils.format(d, DateUtils.DDMMYYYY)).orElse(null),
+        patient.getIdentifier().stream().filter(i -> "MR".equals(i.getType().getCodingFirstRep().getCode())).findFirst().map(Identifier::getValue).orElse(null),
+        Optional.ofNullable(patient.getManagingOrganization()).map(o -> o.getReference().replace("Organization/", "")).orElse(null),
+        null,
+        null,
+        null,
+        false
+      );
+    }).toList();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(FhirClientBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,405 @@
+package bio.ferlab.clin.qlinme.cients;
+
+import bio.ferlab.clin.qlinme.utils.CircuitBreaker;
+import bio.ferlab.clin.qlinme.utils.S3TimedCache;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+class FhirClientTest {
+
+  final S3TimedCache cache = Mockito.mock(S3TimedCache.class);
+  final Map<String, Object> cached = new ConcurrentHashMap<>();
+  final List<String> requestedAliquotIDs = new CopyOnWriteArrayList<>();
+  FakeFhirServer server;
+  FhirClient client;
+
+  @BeforeEach
+  void beforeEach() {
+    // reference data always miss the cache, per identifier entries are kept in memory
+    when(cache.get(anyString(), any(TypeReference.class))).thenReturn(Optional.empty());
+    when(cache.put(anyString(), any())).thenAnswer(i -> i.getArgument(1));
+    when(cache.getOrRefresh(anyString(), any(TypeReference.class), anyBoolean(), any())).thenAnswer(i -> ((Supplier<?>) i.getArgument(3)).get());
+    when(cache.getAll(anyList(), any(TypeReference.class))).thenAnswer(i -> {
+      List<String> keys = i.getArgument(0);
+      return keys.stream().filter(cached::containsKey).collect(Collectors.toMap(k -> k, cached::get));
+    });
+    when(cache.getAll(anyList(), any(TypeReference.class), any(Duration.class))).thenAnswer(i -> {
+      List<String> keys = i.getArgument(0);
+      return keys.stream().filter(cached::containsKey).collect(Collectors.toMap(k -> k, cached::get));
+    });
+    when(cache.putAll(anyMap())).thenAnswer(i -> {
+      cached.putAll(i.getArgument(0));
+      return i.getArgument(0);
+    });
+    when(cache.putAll(anyMap(), any(Duration.class))).thenAnswer(i -> {
+      cached.putAll(i.getArgument(0));
+      return i.getArgument(0);
+    });
+    Mockito.doAnswer(i -> {
+      List<String> keys = i.getArgument(0);
+      keys.forEach(cached::remove);
+      return null;
+    }).when(cache).invalidateAll(anyList());
+    server = new FakeFhirServer()
+      .on("CodeSystem/analysis-request-code", ctx -> FakeFhirServer.panels("MMG", "RGDI"))
+      .on("Task", ctx -> FakeFhirServer.bundle(Arrays.stream(requested(ctx.queryParam("aliquotid")).split(","))
+        .map(aliquotID -> FakeFhirServer.task(aliquotID, "batch_" + (Integer.parseInt(aliquotID) % 3), aliquotID)).toArray(Task[]::new)));
+    client = new FhirClient(server.url(), 5000, 20, 4, 4096, false, 15, cache);
+  }
+
+  @AfterEach
+  void afterEach() {
+    server.close();
+  }
+
+  @Test
+  void concurrent_identical_lookups_share_one_call() throws Exception {
+    server.delayMs = 500;
+    var results = runConcurrently(500, i -> client.getPanelCodes("rpt", true));
+    assertEquals(1, server.hits("CodeSystem/analysis-request-code"));
+    results.forEach(r -> assertEquals(List.of("MMG", "RGDI"), r));
+  }
+
+  @Test
+  void lookups_for_different_keys_run_in_parallel() throws Exception {
+    server.delayMs = 300;
+    var start = System.currentTimeMillis();
+    var results = runConcurrently(20, i -> client.getAliquotIDsByBatch("rpt", List.of(String.valueOf(i % 10)), true));
+    var elapsed = System.currentTimeMillis() - start;
+    assertEquals(10, server.hits("Task"));
+    assertTrue(elapsed < 10 * 300, "lookups were serialized, took: " + elapsed + "ms");
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(Map.of("batch_" + (i % 10 % 3), List.of(String.valueOf(i % 10))), results.get(i));
+    }
+  }
+
+  @Test
+  void chunks_are_fetched_in_parallel_and_merged_in_order() {
+    server.delayMs = 300;
+    var aliquotIDs = IntStream.range(0, 40).mapToObj(String::valueOf).toList();
+    var start = System.currentTimeMillis();
+    var aliquotIDsByBatch = client.getAliquotIDsByBatch("rpt", aliquotIDs, true);
+    var elapsed = System.currentTimeMillis() - start;
+    assertEquals(4, server.hits("Task"));
+    assertTrue(elapsed < 4 * 300, "chunks were fetched sequentially, took: " + elapsed + "ms");
+    assertEquals(List.of("batch_0", "batch_1", "batch_2"), new ArrayList<>(aliquotIDsByBatch.keySet()));
+    for (var batchId : aliquotIDsByBatch.keySet()) {
+      var expected = aliquotIDs.stream().filter(id -> batchId.equals("batch_" + (Integer.parseInt(id) % 3))).toList();
+      assertEquals(expected, aliquotIDsByBatch.get(batchId));
+    }
+  }
+
+  @Test
+  void failure_is_shared_by_concurrent_callers() throws Exception {
+    server.delayMs = 300;
+    server.on("CodeSystem/analysis-request-code", ctx -> {
+      throw new IllegalStateException("boom");
+    });
+    var errors = runConcurrently(50, i -> {
+      try {
+        client.getPanelCodes("rpt", true);
+        return null;
+      } catch (Exception e) {
+        return e;
+      }
+    });
+    // one call (and its retries) for every caller
+    assertEquals(3, server.hits("CodeSystem/analysis-request-code"));
+    errors.forEach(e -> assertNotNull(e, "every caller should see the failure"));
+    // nothing left in-flight, the next call fetches again
+    server.on("CodeSystem/analysis-request-code", ctx -> FakeFhirServer.panels("MMG"));
+    assertEquals(List.of("MMG"), client.getPanelCodes("rpt", true));
+    assertEquals(4, server.hits("CodeSystem/analysis-request-code"));
+  }
+
+  @Test
+  void only_identifiers_missing_from_cache_are_fetched() {
+    var aliquotIDs = IntStream.range(0, 10).mapToObj(String::valueOf).toList();
+    client.getAliquotIDsByBatch("rpt", aliquotIDs, true);
+    assertEquals(List.of(String.join(",", aliquotIDs)), requestedAliquotIDs);
+
+    // one new sample, one not found in FHIR (cached as empty)
+    var edited = new ArrayList<>(aliquotIDs);
+    edited.addAll(List.of("10", "404"));
+    server.on("Task", ctx -> FakeFhirServer.bundle(Arrays.stream(requested(ctx.queryParam("aliquotid")).split(","))
+      .filter(id -> !id.equals("404")).map(id -> FakeFhirServer.task(id, "batch_" + (Integer.parseInt(id) % 3), id)).toArray(Task[]::new)));
+    var aliquotIDsByBatch = client.getAliquotIDsByBatch("rpt", edited, true);
+    assertEquals("10,404", requestedAliquotIDs.get(1));
+    assertEquals(List.of("1", "4", "7", "10"), aliquotIDsByBatch.get("batch_1"));
+    assertEquals(List.of(), cached.get("fhir.missing.aliquotid.404"));
+    assertFalse(cached.containsKey("fhir.aliquotid.404"));
+
+    client.getAliquotIDsByBatch("rpt", edited, true);
+    assertEquals(2, requestedAliquotIDs.size());
+
+    // no-cache refreshes every identifier, in one chunk as the first full chunk was fast
+    client.getAliquotIDsByBatch("rpt", edited, false);
+    assertEquals(3, requestedAliquotIDs.size());
+  }
+
+  @Test
+  void identifiers_removed_from_fhir_are_no_longer_cached() {
+    assertEquals(Map.of("batch_1", List.of("1")), client.getAliquotIDsByBatch("rpt", List.of("1"), true));
+    assertTrue(cached.containsKey("fhir.aliquotid.1"));
+
+    // deleted in FHIR, found by a no-cache lookup
+    server.on("Task", ctx -> FakeFhirServer.bundle());
+    assertEquals(Map.of(), client.getAliquotIDsByBatch("rpt", List.of("1"), false));
+    assertEquals(Set.of("fhir.missing.aliquotid.1"), cached.keySet());
+    assertEquals(Map.of(), client.getAliquotIDsByBatch("rpt", List.of("1"), true));
+
+    // created again
+    server.on("Task", ctx -> FakeFhirServer.bundle(FakeFhirServer.task("1", "batch_2", "1")));
+    assertEquals(Map.of("batch_2", List.of("1")), client.getAliquotIDsByBatch("rpt", List.of("1"), false));
+    assertEquals(Set.of("fhir.aliquotid.1"), cached.keySet());
+  }
+
+  @Test
+  void blank_identifiers_are_ignored() {
+    var aliquotIDs = new ArrayList<>(Arrays.asList("1", null, "", " ", "2"));
+    assertEquals(Map.of("batch_1", List.of("1"), "batch_2", List.of("2")), client.getAliquotIDsByBatch("rpt", aliquotIDs, true));
+    assertEquals(List.of("1,2"), requestedAliquotIDs);
+    assertEquals(Set.of("fhir.aliquotid.1", "fhir.aliquotid.2"), cached.keySet());
+  }
+
+  @Test
+  void search_pages_are_followed() {
+    server.on("Organization", ctx -> {
+      var page = Integer.parseInt(Optional.ofNullable(ctx.queryParam("page")).orElse("0"));
+      var organizations = IntStream.range(page * 100, Math.min(page * 100 + 100, 250)).mapToObj(i -> {
+        var organization = new Organization();
+        organization.setId(String.format("ORG-%03d", i));
+        return organization;
+      }).toArray(Organization[]::new);
+      var bundle = FakeFhirServer.bundle(organizations);
+      if (page < 2) {
+        bundle.addLink().setRelation("next").setUrl(server.url() + "/Organization?page=" + (page + 1));
+      }
+      return bundle;
+    });
+    var organizations = client.getOrganizations("rpt", true);
+    assertEquals(250, organizations.size());
+    assertEquals("ORG-249", organizations.get(249));
+    assertEquals(3, server.hits("Organization"));
+  }
+
+  @Test
+  void tasks_are_joined_to_their_service_request() {
+    var sr1 = new ServiceRequest();
+    sr1.setId("1");
+    sr1.addIdentifier().setValue("SR-00001");
+    var sr2 = new ServiceRequest();
+    sr2.setId("2");
+    sr2.addIdentifier().setValue("SR-00002");
+    var task1 = FakeFhirServer.task("1", "batch_a", "1").setFocus(new Reference("ServiceRequest/2"));
+    var task2 = FakeFhirServer.task("2", "batch_b", "2").setFocus(new Reference("ServiceRequest/1"));
+    var task3 = FakeFhirServer.task("3", "batch_c", "3").setFocus(new Reference("ServiceRequest/1"));
+    var batchIDsByIdentifier = FhirClient.extractBatchIDsByIdentifier(FakeFhirServer.bundle(task1, sr1, task2, sr2, task3));
+    assertEquals(Map.of("SR-00001", List.of("batch_b", "batch_c"), "SR-00002", List.of("batch_a")), batchIDsByIdentifier);
+  }
+
+  @Test
+  void only_read_elements_are_requested() {
+    client.getAliquotIDsByBatch("rpt", List.of("1"), true);
+    assertTrue(server.queries.get(0).contains("_elements=extension%2CgroupIdentifier"), server.queries.get(0));
+  }
+
+  @Test
+  void elements_are_disabled_if_rejected_by_server() {
+    server.on("Task", ctx -> {
+      if (ctx.queryParam("_elements") != null) {
+        ctx.status(400);
+        return outcome("Unknown search parameter: _elements");
+      }
+      var aliquotID = ctx.queryParam("aliquotid");
+      return FakeFhirServer.bundle(FakeFhirServer.task(aliquotID, "batch_1", aliquotID));
+    });
+    assertEquals(Map.of("batch_1", List.of("1")), client.getAliquotIDsByBatch("rpt", List.of("1"), true));
+    // rejected once, next searches skip _elements
+    assertEquals(Map.of("batch_1", List.of("2")), client.getAliquotIDsByBatch("rpt", List.of("2"), true));
+    assertEquals(3, server.hits("Task"));
+  }
+
+  @Test
+  void elements_are_kept_if_the_search_is_rejected_for_another_reason() {
+    var calls = new AtomicInteger();
+    server.on("Task", ctx -> {
+      if (calls.incrementAndGet() == 1) {
+        ctx.status(400);
+        return outcome("Invalid aliquotid");
+      }
+      var aliquotID = ctx.queryParam("aliquotid");
+      return FakeFhirServer.bundle(FakeFhirServer.task(aliquotID, "batch_1", aliquotID));
+    });
+    assertEquals(Map.of("batch_1", List.of("1")), client.getAliquotIDsByBatch("rpt", List.of("1"), true));
+    assertFalse(server.queries.get(1).contains("_elements"), server.queries.get(1));
+    // retried once without, next searches still request _elements
+    client.getAliquotIDsByBatch("rpt", List.of("2"), true);
+    assertTrue(server.queries.get(2).contains("_elements"), server.queries.get(2));
+  }
+
+  private static OperationOutcome outcome(String diagnostics) {
+    var outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setCode(OperationOutcome.IssueType.INVALID).setDiagnostics(diagnostics);
+    return outcome;
+  }
+
+  @Test
+  void chunks_too_big_for_the_server_are_split() {
+    server.on("Task", ctx -> {
+      var aliquotIDs = requested(ctx.queryParam("aliquotid")).split(",");
+      if (aliquotIDs.length > 3) {
+        ctx.status(414);
+        return new OperationOutcome();
+      }
+      return FakeFhirServer.bundle(Arrays.stream(aliquotIDs).map(id -> FakeFhirServer.task(id, "batch_1", id)).toArray(Task[]::new));
+    });
+    var aliquotIDs = IntStream.range(0, 10).mapToObj(String::valueOf).toList();
+    assertEquals(Map.of("batch_1", aliquotIDs), client.getAliquotIDsByBatch("rpt", aliquotIDs, false));
+    // 10 -> 5 + 5 -> (2 + 3) + (2 + 3)
+    assertEquals(7, requestedAliquotIDs.size());
+    var metrics = client.getChunkerMetrics().get("aliquotid");
+    assertEquals(3, metrics.failures());
+    assertTrue(metrics.chunkSize() < 10, "next searches start with a smaller size");
+  }
+
+  @Test
+  void server_errors_are_not_split() {
+    server.on("Task", ctx -> {
+      requested(ctx.queryParam("aliquotid"));
+      throw new IllegalStateException("boom");
+    });
+    var aliquotIDs = IntStream.range(0, 10).mapToObj(String::valueOf).toList();
+    assertThrows(BaseServerResponseException.class, () -> client.getAliquotIDsByBatch("rpt", aliquotIDs, false));
+    // retried as a whole, never in smaller chunks
+    assertEquals(3, requestedAliquotIDs.size());
+    requestedAliquotIDs.forEach(ids -> assertEquals(String.join(",", aliquotIDs), ids));
+    assertEquals(0, client.getChunkerMetrics().get("aliquotid").failures());
+  }
+
+  @Test
+  void server_failures_are_retried() {
+    var calls = new AtomicInteger();
+    server.on("CodeSystem/analysis-request-code", ctx -> {
+      if (calls.incrementAndGet() <= 2) throw new IllegalStateException("boom");
+      return FakeFhirServer.panels("MMG");
+    });
+    assertEquals(List.of("MMG"), client.getPanelCodes("rpt", true));
+    assertEquals(3, server.hits("CodeSystem/analysis-request-code"));
+  }
+
+  @Test
+  void circuit_breaker_opens_on_repeated_failures() {
+    server.on("CodeSystem/analysis-request-code", ctx -> {
+      throw new IllegalStateException("boom");
+    });
+    assertThrows(BaseServerResponseException.class, () -> client.getPanelCodes("rpt", true));
+    // 5th consecutive failure opens the breaker, the 3rd attempt is rejected
+    assertThrows(CircuitBreaker.OpenException.class, () -> client.getPanelCodes("rpt", true));
+    assertThrows(CircuitBreaker.OpenException.class, () -> client.getPanelCodes("rpt", true));
+    assertEquals(5, server.hits("CodeSystem/analysis-request-code"));
+    // other searches aren't affected
+    assertEquals(Map.of("batch_1", List.of("1")), client.getAliquotIDsByBatch("rpt", List.of("1"), true));
+  }
+
+  @Test
+  void slow_calls_are_hedged() {
+    var hedgingClient = new FhirClient(server.url(), 5000, 20, 4, 4096, true, 15, cache);
+    var calls = new AtomicInteger();
+    server.on("CodeSystem/analysis-request-code", ctx -> {
+      if (calls.incrementAndGet() == 21) sleep(3000);
+      return FakeFhirServer.panels("MMG");
+    });
+    for (int i = 0; i < 20; i++) {
+      hedgingClient.getPanelCodes("rpt", false);  // p95 latency samples
+    }
+    var start = System.currentTimeMillis();
+    assertEquals(List.of("MMG"), hedgingClient.getPanelCodes("rpt", false));
+    assertTrue(System.currentTimeMillis() - start < 1000, "slow call wasn't hedged");
+    assertEquals(1L, hedgingClient.getResilienceMetrics().get("hedges"));
+    assertEquals(22, server.hits("CodeSystem/analysis-request-code"));
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  void fresh_batch_validated_again_costs_no_fhir_call() {
+    server.on("Task", ctx -> {
+      requested(ctx.queryParam("aliquotid"));
+      return FakeFhirServer.bundle();  // none created yet
+    });
+    var aliquotIDs = IntStream.range(100, 130).mapToObj(String::valueOf).toList();
+    assertEquals(Map.of(), client.getAliquotIDsByBatch("rpt", aliquotIDs, true));
+    var requests = requestedAliquotIDs.size();
+    // different order, chunks don't matter
+    assertEquals(Map.of(), client.getAliquotIDsByBatch("rpt", aliquotIDs.reversed(), true));
+    assertEquals(requests, requestedAliquotIDs.size());
+    aliquotIDs.forEach(id -> assertTrue(cached.containsKey("fhir.missing.aliquotid." + id)));
+  }
+
+  private String requested(String aliquotIDs) {
+    requestedAliquotIDs.add(aliquotIDs);
+    return aliquotIDs;
+  }
+
+  private <T> List<T> runConcurrently(int count, IntFunction<T> call) throws Exception {
+    var ready = new CountDownLatch(1);
+    var futures = new ArrayList<Future<T>>();
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < count; i++) {
+        final int index = i;
+        futures.add(executor.submit(() -> {
+          ready.await();
+          return call.apply(index);
+        }));
+      }
+      ready.countDown();
+    }
+    var results = new ArrayList<T>();
+    for (var future : futures) {
+      results.add(future.get());
+    }
+    return results;
+  }
+}
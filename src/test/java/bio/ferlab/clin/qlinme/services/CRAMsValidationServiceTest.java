@@ -0,0 +1,88 @@
+package bio.ferlab.clin.qlinme.services;
+
+import bio.ferlab.clin.qlinme.TestUtils;
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.BatchFile;
+import bio.ferlab.clin.qlinme.model.CRAMsManifest;
+import bio.ferlab.clin.qlinme.model.FilesValidation;
+import bio.ferlab.clin.qlinme.utils.CRAMs;
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
+import bio.ferlab.clin.qlinme.utils.WriteBehind;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class CRAMsValidationServiceTest {
+
+  final software.amazon.awssdk.services.s3.S3Client baseS3Client = Mockito.mock(software.amazon.awssdk.services.s3.S3Client.class);
+  final S3Client s3Client = Mockito.mock(S3Client.class);
+  final CacheCodec codec = new CacheCodec(new ObjectMapper(), CacheCodec.Format.JSON);
+  final WriteBehind writeBehind = new WriteBehind(100, 10, 2);
+  final CRAMsValidationService service = new CRAMsValidationService("input", s3Client, codec, writeBehind, 4);
+  final Map<String, byte[]> crams = Map.of(
+    "00001.cram", CRAMs.cram("@HD\tVN:1.6\n@RG\tID:1\tSM:00001\n", true),
+    "00002.cram", CRAMs.cram("@HD\tVN:1.6\n@RG\tID:1\tSM:00009\n", false),
+    "00003.cram", new byte[100]);
+
+  @BeforeEach
+  void beforeEach() {
+    when(s3Client.getS3Client()).thenReturn(baseS3Client);
+    when(s3Client.getManifest(any(), any())).thenReturn(Optional.empty());
+    crams.forEach((name, data) -> when(baseS3Client.getObjectAsBytes(argThat((GetObjectRequest r) -> r != null && r.key().equals("batch/" + name))))
+      .thenAnswer(i -> {
+        var range = ((GetObjectRequest) i.getArgument(0)).range().replace("bytes=", "").split("-");
+        var bytes = Arrays.copyOfRange(data, Integer.parseInt(range[0]), Math.min(data.length, Integer.parseInt(range[1]) + 1));
+        return ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), bytes);
+      }));
+  }
+
+  @Test
+  void samples_match_the_aliquots() {
+    var validation = new FilesValidation();
+    service.validate(TestUtils.loadTestMetadata("valid"), "batch", files("00001.cram", "00002.cram", "00003.cram"), true, validation);
+    assertEquals(List.of(
+      "00002.cram @RG SM: [00009] doesn't match labAliquotId: 00002",
+      "00003.cram can't be read: Not a CRAM file"), validation.getErrors());
+  }
+
+  @Test
+  void samples_are_cached_by_etag() {
+    service.validate(TestUtils.loadTestMetadata("valid"), "batch", files("00001.cram"), true, new FilesValidation());
+    assertTrue(writeBehind.flush(5000));
+    var data = ArgumentCaptor.forClass(byte[].class);
+    verify(s3Client).putManifest(eq("input"), eq(S3Client.formatCRAMsManifestKey("batch")), data.capture());
+    var manifest = codec.decode(data.getValue(), new TypeReference<CRAMsManifest>() { });
+    assertEquals(Map.of("00001.cram", new CRAMsManifest.CRAM("\"etag\"", List.of("00001"))), manifest.crams());
+
+    clearInvocations(baseS3Client);
+    when(s3Client.getManifest(any(), any())).thenReturn(Optional.of(ResponseBytes.fromByteArray(
+      GetObjectResponse.builder().eTag("\"manifest\"").build(), data.getValue())));
+    var validation = new FilesValidation();
+    service.validate(TestUtils.loadTestMetadata("valid"), "batch", files("00001.cram"), true, validation);
+    assertEquals(List.of(), validation.getErrors());
+    verifyNoInteractions(baseS3Client);
+  }
+
+  private List<BatchFile> files(String... names) {
+    return Arrays.stream(names).map(name -> new BatchFile(name, "batch/" + name, crams.get(name).length, "\"etag\"", Instant.EPOCH)).toList();
+  }
+}
@@ -0,0 +1,110 @@
+package bio.ferlab.clin.qlinme.services;
+
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.BatchFile;
+import bio.ferlab.clin.qlinme.model.ChecksumsManifest;
+import bio.ferlab.clin.qlinme.model.FilesValidation;
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
+import bio.ferlab.clin.qlinme.utils.WriteBehind;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class ChecksumsValidationServiceTest {
+
+  final software.amazon.awssdk.services.s3.S3Client baseS3Client = Mockito.mock(software.amazon.awssdk.services.s3.S3Client.class);
+  final S3Client s3Client = Mockito.mock(S3Client.class);
+  final CacheCodec codec = new CacheCodec(new ObjectMapper(), CacheCodec.Format.JSON);
+  final WriteBehind writeBehind = new WriteBehind(100, 10, 2);
+  final ChecksumsValidationService service = new ChecksumsValidationService("input", s3Client, codec, writeBehind, 2);
+  final byte[] cram = new byte[3 * 1024 * 1024 + 7];  // more than one buffer
+
+  @BeforeEach
+  void beforeEach() {
+    new Random(1).nextBytes(cram);
+    when(s3Client.getS3Client()).thenReturn(baseS3Client);
+    when(s3Client.getManifest(any(), any())).thenReturn(Optional.empty());
+    when(baseS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(i -> new ResponseInputStream<>(GetObjectResponse.builder().build(),
+      AbortableInputStream.create(new ByteArrayInputStream(cram))));
+    sidecar("1.cram.md5sum", DigestUtils.md5Hex(cram) + "  1.cram\n");
+  }
+
+  @Test
+  void matching_checksum_is_cached() {
+    var validation = new FilesValidation();
+    service.validate("batch", objects(), true, validation);
+    assertEquals(List.of(), validation.getErrors());
+    assertEquals(List.of("3.cram.md5sum found but 3.cram is missing"), validation.getWarnings());
+    assertTrue(writeBehind.flush(5000));
+    var data = ArgumentCaptor.forClass(byte[].class);
+    verify(s3Client).putManifest(eq("input"), eq(S3Client.formatChecksumsManifestKey("batch")), data.capture());
+    var manifest = codec.decode(data.getValue(), new TypeReference<ChecksumsManifest>() { });
+    assertEquals(Map.of("1.cram", new ChecksumsManifest.Checksum("\"1\"", DigestUtils.md5Hex(cram))), manifest.files());
+
+    // same ETag, only the sidecar is read
+    when(s3Client.getManifest(any(), any())).thenReturn(Optional.of(ResponseBytes.fromByteArray(
+      GetObjectResponse.builder().eTag("\"manifest\"").build(), data.getValue())));
+    validation = new FilesValidation();
+    service.validate("batch", objects(), true, validation);
+    assertEquals(List.of(), validation.getErrors());
+    verify(baseS3Client, times(1)).getObject(any(GetObjectRequest.class));
+    assertEquals(1L, service.getMetrics().get("cacheHits"));
+    assertEquals((long) cram.length, service.getMetrics().get("hashedBytes"));
+    assertEquals(0L, service.getMetrics().get("remainingBytes"));
+  }
+
+  @Test
+  void wrong_checksum() {
+    sidecar("1.cram.md5sum", "0123456789abcdef0123456789abcdef");
+    var validation = new FilesValidation();
+    service.validate("batch", objects(), false, validation);
+    assertEquals(List.of("1.cram checksum " + DigestUtils.md5Hex(cram) + " doesn't match 1.cram.md5sum: 0123456789abcdef0123456789abcdef"),
+      validation.getErrors());
+    assertEquals((long) cram.length, service.getMetrics().get("hashedBytes"));
+  }
+
+  @Test
+  void invalid_sidecar() {
+    sidecar("1.cram.md5sum", "not a checksum");
+    var validation = new FilesValidation();
+    service.validate("batch", objects(), true, validation);
+    assertEquals(List.of("1.cram checksum can't be verified: Invalid 1.cram.md5sum"), validation.getErrors());
+  }
+
+  private void sidecar(String name, String content) {
+    when(baseS3Client.getObjectAsBytes(argThat((GetObjectRequest r) -> r != null && r.key().equals("batch/" + name))))
+      .thenReturn(ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), content.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private List<BatchFile> objects() {
+    return List.of(
+      new BatchFile("1.cram", "batch/1.cram", cram.length, "\"1\"", Instant.EPOCH),
+      new BatchFile("1.cram.md5sum", "batch/1.cram.md5sum", 40, "\"2\"", Instant.EPOCH),
+      new BatchFile("2.cram", "batch/2.cram", 10, "\"3\"", Instant.EPOCH),  // no sidecar, not verified
+      new BatchFile("3.cram.md5sum", "batch/3.cram.md5sum", 40, "\"4\"", Instant.EPOCH));  // no file, a warning
+  }
+}
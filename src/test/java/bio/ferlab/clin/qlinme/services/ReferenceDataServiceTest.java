@@ -0,0 +1,79 @@
+package bio.ferlab.clin.qlinme.services;
+
+import bio.ferlab.clin.qlinme.cients.FhirClient;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class ReferenceDataServiceTest {
+
+  final FhirClient fhirClient = Mockito.mock(FhirClient.class);
+  ReferenceDataService service;
+
+  @Test
+  void first_load_is_split_by_organization_type() {
+    when(fhirClient.getPanelCodes(anyString(), anyBoolean())).thenReturn(List.of("MMG", "RGDI"));
+    when(fhirClient.getOrganizations(anyString(), anyBoolean())).thenReturn(List.of("CHUSJ", "LDM-CHUSJ", "LDM-CHUS"));
+    service = new ReferenceDataService(fhirClient, 60_000);
+    var referenceData = service.get("rpt", true);
+    assertEquals(List.of("MMG", "RGDI"), referenceData.panelCodes());
+    assertEquals(List.of("LDM-CHUSJ", "LDM-CHUS"), referenceData.ldms());
+    assertEquals(List.of("CHUSJ"), referenceData.eps());
+    assertSame(referenceData, service.get("rpt", true));
+    verify(fhirClient, times(1)).getOrganizations("rpt", true);
+  }
+
+  @Test
+  void stale_snapshot_is_served_while_refreshed_in_background() throws InterruptedException {
+    var refreshing = new CountDownLatch(1);
+    var refreshed = new CountDownLatch(1);
+    when(fhirClient.getPanelCodes(anyString(), anyBoolean())).thenReturn(List.of("MMG"));
+    when(fhirClient.getOrganizations("rpt", true)).thenReturn(List.of("LDM-CHUSJ")).thenAnswer(i -> {
+      refreshing.await();  // slow FHIR
+      refreshed.countDown();
+      return List.of("LDM-CHUSJ", "LDM-CHUS");
+    });
+    service = new ReferenceDataService(fhirClient, 400);
+    var first = service.get("rpt", true);
+    Thread.sleep(400);
+    // refresh-ahead started, request doesn't wait
+    assertSame(first, service.get("rpt", true));
+    refreshing.countDown();
+    assertTrue(refreshed.await(1, TimeUnit.SECONDS));
+    Thread.sleep(50);
+    assertEquals(List.of("LDM-CHUSJ", "LDM-CHUS"), service.get("rpt", true).ldms());
+  }
+
+  @Test
+  void failed_refresh_keeps_the_current_snapshot() throws InterruptedException {
+    when(fhirClient.getPanelCodes(anyString(), anyBoolean())).thenReturn(List.of("MMG"));
+    when(fhirClient.getOrganizations("rpt", true)).thenReturn(List.of("LDM-CHUSJ")).thenThrow(new IllegalStateException("FHIR is down"));
+    service = new ReferenceDataService(fhirClient, 400);
+    var first = service.get("rpt", true);
+    Thread.sleep(500);
+    assertSame(first, service.get("rpt", true));
+    // the refresh reads the shared cache, refreshed by one node under a lease
+    verify(fhirClient, timeout(1000).times(2)).getOrganizations("rpt", true);
+    assertSame(first, service.get("rpt", true));
+    verify(fhirClient, never()).getOrganizations("rpt", false);
+  }
+
+  @Test
+  void no_refresh_without_requests() throws InterruptedException {
+    when(fhirClient.getPanelCodes(anyString(), anyBoolean())).thenReturn(List.of("MMG"));
+    when(fhirClient.getOrganizations(anyString(), anyBoolean())).thenReturn(List.of("LDM-CHUSJ"));
+    service = new ReferenceDataService(fhirClient, 200);
+    service.get("rpt", true);
+    Thread.sleep(400);
+    // the token of a past request is never replayed
+    verify(fhirClient, times(1)).getOrganizations(anyString(), anyBoolean());
+  }
+}
@@ -2,31 +2,55 @@ package bio.ferlab.clin.qlinme.services;
 
 import bio.ferlab.clin.qlinme.TestUtils;
 import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.BatchFile;
 import bio.ferlab.clin.qlinme.model.MetadataValidation;
+import bio.ferlab.clin.qlinme.model.VCFsIndex;
+import bio.ferlab.clin.qlinme.model.VCFsManifest;
 import bio.ferlab.clin.qlinme.model.VCFsValidation;
+import bio.ferlab.clin.qlinme.utils.CacheCodec;
+import bio.ferlab.clin.qlinme.utils.VCFIntegrityScanner;
+import bio.ferlab.clin.qlinme.utils.WriteBehind;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
-import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 
 class VCFsValidationServiceTest {
 
   final software.amazon.awssdk.services.s3.S3Client baseS3Client = Mockito.mock(software.amazon.awssdk.services.s3.S3Client.class);
   final S3Client s3Client = Mockito.mock(S3Client.class);
-  final VCFsValidationService service = new VCFsValidationService("input", s3Client);
+  final byte[] vcf = gzip("##fileformat=VCFv4.2\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t00004\nchr1\t1\t.\tA\tT\t50\tPASS\t.\tGT\t0/1\n");
+  final CacheCodec codec = new CacheCodec(new ObjectMapper(), CacheCodec.Format.JSON);
+  final WriteBehind writeBehind = new WriteBehind(100, 10, 2);
+  final VCFsValidationService service = new VCFsValidationService("input", s3Client, codec, writeBehind, new VCFIntegrityScanner(2),
+    new VCFsIndexService("input", s3Client, codec, writeBehind), 4, 1);
 
   @BeforeEach
   void beforeEach() throws IOException {
@@ -36,13 +60,74 @@ class VCFsValidationServiceTest {
 
     when(s3Client.getS3Client()).thenReturn(baseS3Client);
 
-    HeadObjectResponse headObjectResponse = Mockito.mock(HeadObjectResponse.class);
-    when(headObjectResponse.lastModified()).thenReturn(Instant.ofEpochSecond(1));
-    when(baseS3Client.headObject(any(HeadObjectRequest.class))).thenReturn(headObjectResponse);
+    when(baseS3Client.getObjectAsBytes(any(GetObjectRequest.class))).thenReturn(ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), vcf));
 
-    when(s3Client.getCachedVCFAliquotIDs(any(), any(), any())).thenReturn(new byte[]{});
-    when(s3Client.getCachedVCFAliquotIDs(any(), eq("invalid_vcfs_germline/00001.hard-filtered.formatted.norm.vep.vcf.gz"), any())).thenReturn("00001".getBytes());
-    when(s3Client.getCachedVCFAliquotIDs(any(), eq("invalid_vcfs_germline/00002.hard-filtered.formatted.norm.vep.vcf.gz"), any())).thenReturn("00002,00003".getBytes());
+    var manifest = new VCFsManifest(Map.of(
+      "00001.hard-filtered.formatted.norm.vep.vcf.gz", new VCFsManifest.VCF("\"etag\"", List.of("00001")),
+      "00002.hard-filtered.formatted.norm.vep.vcf.gz", new VCFsManifest.VCF("\"etag\"", List.of("00002", "00003"))));
+    when(s3Client.getManifest(any(), eq(S3Client.formatVCFsManifestKey("invalid_vcfs_germline")))).thenReturn(Optional.of(ResponseBytes.fromByteArray(
+      GetObjectResponse.builder().eTag("\"manifest\"").build(), codec.encode(manifest))));
+  }
+
+  @Test
+  void warm_status_reads_only_the_manifest() {
+    assertBatchId("invalid_vcfs_germline", List.of("00001.hard-filtered.formatted.norm.vep.vcf.gz","00002.hard-filtered.formatted.norm.vep.vcf.gz"), true);
+    assertTrue(writeBehind.flush(5000));
+    verify(s3Client, times(1)).getManifest(any(), eq(S3Client.formatVCFsManifestKey("invalid_vcfs_germline")));
+    verify(s3Client, never()).putManifest(any(), any(), any());
+    verifyNoInteractions(baseS3Client);  // no HEAD, the listing has the ETags
+  }
+
+  @Test
+  void new_vcf_updates_the_manifest() {
+    var validation = service.validate(TestUtils.loadTestMetadata("invalid_vcfs_germline"), "invalid_vcfs_germline", files("invalid_vcfs_germline",
+      "00001.hard-filtered.formatted.norm.vep.vcf.gz", "00002.hard-filtered.formatted.norm.vep.vcf.gz", "00004.hard-filtered.formatted.norm.vep.vcf.gz"), true, false);
+    assertEquals(List.of(), validation.getErrors());
+    assertTrue(writeBehind.flush(5000));
+    var data = ArgumentCaptor.forClass(byte[].class);
+    verify(s3Client).putManifest(eq("input"), eq(S3Client.formatVCFsManifestKey("invalid_vcfs_germline")), data.capture());
+    var manifest = codec.decode(data.getValue(), new TypeReference<VCFsManifest>() { });
+    assertEquals(3, manifest.vcfs().size());
+    assertEquals(new VCFsManifest.VCF("\"etag\"", List.of("00004")), manifest.vcfs().get("00004.hard-filtered.formatted.norm.vep.vcf.gz"));
+  }
+
+  @Test
+  void aliquot_of_another_batch_is_a_warning() {
+    var index = new VCFsIndex(Map.of("00001", List.of(new VCFsIndex.Location("other_batch", "00001.vcf.gz", "\"other\""))));
+    when(s3Client.getVCFsIndex(any(), any())).thenReturn(Optional.of(ResponseBytes.fromByteArray(
+      GetObjectResponse.builder().eTag("\"index\"").build(), codec.encode(index))));
+    var validation = service.validate(TestUtils.loadTestMetadata("invalid_vcfs_germline"), "invalid_vcfs_germline", files("invalid_vcfs_germline",
+      "00001.hard-filtered.formatted.norm.vep.vcf.gz", "00002.hard-filtered.formatted.norm.vep.vcf.gz"), true, false);
+    assertTrue(validation.getWarnings().contains("00001 also found in batch: other_batch VCF: 00001.vcf.gz"));
+
+    // the batch is added to the index, the other batches are kept
+    assertTrue(writeBehind.flush(5000));
+    var data = ArgumentCaptor.forClass(byte[].class);
+    verify(s3Client).putVCFsIndex(eq("input"), data.capture(), eq("\"index\""));
+    var updated = codec.decode(data.getValue(), new TypeReference<VCFsIndex>() { });
+    assertEquals(List.of(new VCFsIndex.Location("other_batch", "00001.vcf.gz", "\"other\""),
+      new VCFsIndex.Location("invalid_vcfs_germline", "00001.hard-filtered.formatted.norm.vep.vcf.gz", "\"etag\"")), updated.aliquots().get("00001"));
+    assertEquals(Set.of("00001", "00002", "00003"), updated.aliquots().keySet());
+
+    // up to date, not written again
+    when(s3Client.getVCFsIndex(any(), any())).thenReturn(Optional.of(ResponseBytes.fromByteArray(
+      GetObjectResponse.builder().eTag("\"index2\"").build(), data.getValue())));
+    service.validate(TestUtils.loadTestMetadata("invalid_vcfs_germline"), "invalid_vcfs_germline", files("invalid_vcfs_germline",
+      "00001.hard-filtered.formatted.norm.vep.vcf.gz", "00002.hard-filtered.formatted.norm.vep.vcf.gz"), true, false);
+    assertTrue(writeBehind.flush(5000));
+    verify(s3Client, times(1)).putVCFsIndex(any(), any(), any());
+  }
+
+  private static byte[] gzip(String text) {
+    try {
+      var out = new ByteArrayOutputStream();
+      try (var gzip = new GZIPOutputStream(out)) {
+        gzip.write(text.getBytes(StandardCharsets.UTF_8));
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   @Test
@@ -50,9 +135,57 @@ class VCFsValidationServiceTest {
     assertBatchId("invalid_vcfs_germline", List.of("00001.hard-filtered.formatted.norm.vep.vcf.gz","00002.hard-filtered.formatted.norm.vep.vcf.gz"), true);
   }
 
+  @Test
+  void unreadable_vcf_is_an_error_of_that_file() {
+    when(baseS3Client.getObjectAsBytes(argThat((GetObjectRequest r) -> r != null && r.key().endsWith("00005.hard-filtered.formatted.norm.vep.vcf.gz"))))
+      .thenThrow(S3Exception.builder().message("Access Denied").build());
+    var metadata = TestUtils.loadTestMetadata("invalid_vcfs_germline");
+    var validation = service.validate(metadata, "invalid_vcfs_germline", files("invalid_vcfs_germline", "00001.hard-filtered.formatted.norm.vep.vcf.gz",
+      "00005.hard-filtered.formatted.norm.vep.vcf.gz", "00002.hard-filtered.formatted.norm.vep.vcf.gz"), true, false);
+    assertEquals(3, validation.getCount());
+    assertEquals(List.of("00005.hard-filtered.formatted.norm.vep.vcf.gz can't be read: Access Denied",
+      "00004 in metadata but VCF is missing"), validation.getErrors());
+    assertEquals(1, validation.getWarnings().size());
+  }
+
+  @Test
+  void unreadable_vcf_keeps_its_index_entries() {
+    var unreadable = new VCFsIndex.Location("invalid_vcfs_germline", "00005.hard-filtered.formatted.norm.vep.vcf.gz", "\"etag\"");
+    when(s3Client.getVCFsIndex(any(), any())).thenReturn(Optional.of(ResponseBytes.fromByteArray(
+      GetObjectResponse.builder().eTag("\"index\"").build(), codec.encode(new VCFsIndex(Map.of("00005", List.of(unreadable)))))));
+    when(baseS3Client.getObjectAsBytes(argThat((GetObjectRequest r) -> r != null && r.key().endsWith("00005.hard-filtered.formatted.norm.vep.vcf.gz"))))
+      .thenThrow(S3Exception.builder().message("Access Denied").build());
+    service.validate(TestUtils.loadTestMetadata("invalid_vcfs_germline"), "invalid_vcfs_germline", files("invalid_vcfs_germline",
+      "00001.hard-filtered.formatted.norm.vep.vcf.gz", "00005.hard-filtered.formatted.norm.vep.vcf.gz"), true, false);
+    assertTrue(writeBehind.flush(5000));
+    var data = ArgumentCaptor.forClass(byte[].class);
+    verify(s3Client).putVCFsIndex(eq("input"), data.capture(), eq("\"index\""));
+    var updated = codec.decode(data.getValue(), new TypeReference<VCFsIndex>() { });
+    assertEquals(Set.of("00001", "00005"), updated.aliquots().keySet());
+    assertEquals(List.of(unreadable), updated.aliquots().get("00005"));
+  }
+
+  @Test
+  void deep_scan_runs_on_the_readable_vcfs() {
+    when(baseS3Client.getObjectAsBytes(argThat((GetObjectRequest r) -> r != null && r.key().endsWith("00005.hard-filtered.formatted.norm.vep.vcf.gz"))))
+      .thenThrow(S3Exception.builder().message("Access Denied").build());
+    // plain gzip, not BGZF
+    when(baseS3Client.getObject(any(GetObjectRequest.class))).thenAnswer(i -> new ResponseInputStream<>(GetObjectResponse.builder().build(),
+      AbortableInputStream.create(new ByteArrayInputStream(vcf))));
+    var validation = service.validate(TestUtils.loadTestMetadata("invalid_vcfs_germline"), "invalid_vcfs_germline", files("invalid_vcfs_germline",
+      "00001.hard-filtered.formatted.norm.vep.vcf.gz", "00005.hard-filtered.formatted.norm.vep.vcf.gz"), true, true);
+    assertTrue(validation.getErrors().contains("00001.hard-filtered.formatted.norm.vep.vcf.gz: Not a BGZF block at: 0"));
+    assertTrue(validation.getErrors().contains("00005.hard-filtered.formatted.norm.vep.vcf.gz can't be read: Access Denied"));
+    verify(baseS3Client, times(1)).getObject(any(GetObjectRequest.class));
+  }
+
+  private List<BatchFile> files(String batchId, String... names) {
+    return Arrays.stream(names).map(name -> new BatchFile(name, batchId + "/" + name, vcf.length, "\"etag\"", Instant.EPOCH)).toList();
+  }
+
   private VCFsValidation assertBatchId(String batchId, List<String> files, boolean allowCache) {
     var metadata = TestUtils.loadTestMetadata(batchId);
-    var validation = service.validate(metadata, batchId, files, allowCache);
+    var validation = service.validate(metadata, batchId, files(batchId, files.toArray(String[]::new)), allowCache, false);
     TestUtils.assertValidation(batchId, validation);
     return validation;
   }
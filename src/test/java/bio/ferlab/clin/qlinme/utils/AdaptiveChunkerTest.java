@@ -0,0 +1,50 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveChunkerTest {
+
+  final List<String> ids = IntStream.range(0, 100).mapToObj(i -> String.format("ID-%05d", i)).toList();
+
+  @Test
+  void grows_on_fast_full_chunks_only() {
+    var chunker = new AdaptiveChunker(10, 40, 10_000, 100);
+    chunker.onSuccess(10, 10);
+    assertEquals(15, chunker.size());
+    chunker.onSuccess(3, 10);  // partial chunk
+    assertEquals(15, chunker.size());
+    chunker.onSuccess(15, 500);  // slow
+    assertEquals(15, chunker.size());
+    chunker.onSuccess(15, 10);
+    chunker.onSuccess(22, 10);
+    chunker.onSuccess(33, 10);
+    assertEquals(40, chunker.size());
+    assertEquals(List.of(40, 40, 20), chunker.partition(ids).stream().map(List::size).toList());
+  }
+
+  @Test
+  void shrinks_on_failure() {
+    var chunker = new AdaptiveChunker(10, 40, 10_000, 100);
+    chunker.onFailure(100);
+    chunker.onFailure(100);
+    assertEquals(2, chunker.size());
+    chunker.onFailure(100);
+    chunker.onFailure(100);
+    assertEquals(1, chunker.size());
+    assertEquals(new AdaptiveChunker.Metrics(1, 100, 4, 4), chunker.metrics());
+  }
+
+  @Test
+  void chunks_are_cut_by_url_bytes() {
+    var chunker = new AdaptiveChunker(50, 50, 120, 100);  // 11 bytes per id: 10 ids per chunk
+    var chunks = chunker.partition(ids);
+    assertEquals(10, chunks.size());
+    chunks.forEach(chunk -> assertEquals(10, chunk.size()));
+    assertEquals(ids, chunks.stream().flatMap(List::stream).toList());
+  }
+}
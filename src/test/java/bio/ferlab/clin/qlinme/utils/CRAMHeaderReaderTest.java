@@ -0,0 +1,50 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CRAMHeaderReaderTest {
+
+  final AtomicLong end = new AtomicLong();
+  final String readGroups = "@HD\tVN:1.6\tSO:coordinate\n@RG\tID:1\tSM:00001\tPL:ILLUMINA\n@RG\tID:2\tSM:00001\n@RG\tID:3\tLB:lib\tSM:00002\n";
+
+  @Test
+  void short_header_needs_one_range() {
+    var cram = CRAMs.cram(readGroups, false);
+    assertEquals(List.of("00001", "00002"), read(cram));
+    assertTrue(end.get() <= 4 * 1024);
+  }
+
+  @Test
+  void long_header_stops_at_the_header_block() {
+    var header = new StringBuilder(readGroups);
+    for (int i = 0; i < 5000; i++) header.append("@SQ\tSN:chrUn_").append(i).append("\tLN:").append(100_000 + i).append("\n");
+    for (var gzip : List.of(false, true)) {
+      var cram = CRAMs.cram(header.toString(), gzip);
+      end.set(0);
+      assertEquals(List.of("00001", "00002"), read(cram));
+      assertEquals(cram.length - 100_000 - 4, end.get());  // not even the block crc32
+    }
+  }
+
+  @Test
+  void not_a_cram() {
+    var e = assertThrows(IllegalStateException.class, () -> read(new byte[1000]));
+    assertEquals("Not a CRAM file", e.getMessage());
+    var truncated = Arrays.copyOf(CRAMs.cram(readGroups, true), 60);
+    e = assertThrows(IllegalStateException.class, () -> read(truncated));
+    assertEquals("Truncated CRAM header", e.getMessage());
+  }
+
+  private List<String> read(byte[] cram) {
+    return CRAMHeaderReader.readSamples((offset, length) -> {
+      end.accumulateAndGet(offset + length, Math::max);
+      return Arrays.copyOfRange(cram, (int) offset, (int) (offset + length));
+    }, cram.length);
+  }
+}
@@ -0,0 +1,76 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+// minimal CRAM files for the tests
+public class CRAMs {
+
+  // CRAM 3.0: file definition, header container with the SAM header block, then some alignment bytes
+  public static byte[] cram(String samHeader, boolean gzip) {
+    try {
+      var text = samHeader.getBytes(StandardCharsets.UTF_8);
+      var raw = new ByteArrayOutputStream();
+      writeInt(raw, text.length);
+      raw.write(text);
+      var data = raw.toByteArray();
+      if (gzip) {
+        var compressed = new ByteArrayOutputStream();
+        try (var out = new GZIPOutputStream(compressed)) {
+          out.write(data);
+        }
+        data = compressed.toByteArray();
+      }
+      var block = new ByteArrayOutputStream();
+      block.write(gzip ? 1 : 0);  // method
+      block.write(0);  // FILE_HEADER
+      writeITF8(block, 0);
+      writeITF8(block, data.length);
+      writeITF8(block, raw.size());
+      block.write(data);
+      writeInt(block, 0);  // crc32, not checked
+      var cram = new ByteArrayOutputStream();
+      cram.write("CRAM".getBytes(StandardCharsets.US_ASCII));
+      cram.write(new byte[]{3, 0});
+      cram.write(new byte[20]);
+      writeInt(cram, block.size());
+      writeITF8(cram, 0);  // ref id
+      writeITF8(cram, 0);  // start
+      writeITF8(cram, 0);  // span
+      writeITF8(cram, 0);  // records
+      cram.write(new byte[]{0, 0});  // record counter, bases (LTF8)
+      writeITF8(cram, 1);  // blocks
+      writeITF8(cram, 0);  // landmarks
+      writeInt(cram, 0);  // crc32
+      cram.write(block.toByteArray());
+      cram.write(new byte[100_000]);  // alignments
+      return cram.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    for (int i = 0; i < 4; i++) out.write(value >> (8 * i) & 0xFF);
+  }
+
+  private static void writeITF8(ByteArrayOutputStream out, int value) {
+    if (value < 0x80) {
+      out.write(value);
+    } else if (value < 0x4000) {
+      out.write(0x80 | value >> 8);
+      out.write(value & 0xFF);
+    } else if (value < 0x200000) {
+      out.write(0xC0 | value >> 16);
+      out.write(value >> 8 & 0xFF);
+      out.write(value & 0xFF);
+    } else {
+      out.write(0xE0 | value >> 24);
+      out.write(value >> 16 & 0xFF);
+      out.write(value >> 8 & 0xFF);
+      out.write(value & 0xFF);
+    }
+  }
+}
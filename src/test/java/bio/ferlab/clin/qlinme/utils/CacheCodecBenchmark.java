@@ -0,0 +1,56 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import bio.ferlab.clin.qlinme.model.Metadata;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Cache entries encoding: legacy JSON vs Smile vs gzipped Smile, sizes are printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+  private static final TypeReference<List<Metadata.Patient>> PATIENTS = new TypeReference<>() { };
+
+  @Param({"JSON", "SMILE", "SMILE_GZIP"})
+  public CacheCodec.Format format;
+
+  private CacheCodec codec;
+  private List<Metadata.Patient> patients;
+  private byte[] encoded;
+
+  @Setup
+  public void setup() {
+    codec = new CacheCodec(new ObjectMapper(), format);
+    patients = IntStream.range(0, 200).mapToObj(i -> new Metadata.Patient("Given" + i, "Family" + i, "female",
+      "RAMQ" + i, "01/01/1990", "MRN-" + i, "CHUSJ", null, null, null, false)).toList();
+    encoded = codec.encode(patients);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return codec.encode(patients);
+  }
+
+  @Benchmark
+  public List<Metadata.Patient> decode() {
+    return codec.decode(encoded, PATIENTS);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(CacheCodecBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,66 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import bio.ferlab.clin.qlinme.model.Metadata;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheCodecTest {
+
+  final ObjectMapper mapper = new ObjectMapper();
+  final List<Metadata.Patient> patients = IntStream.range(0, 50).mapToObj(i -> new Metadata.Patient("First" + i, "Last" + i,
+    "male", "RAMQ" + i, "01/01/2000", "MRN-" + i, "CHUSJ", null, null, null, false)).toList();
+
+  @Test
+  void round_trip() {
+    for (var format : CacheCodec.Format.values()) {
+      var codec = new CacheCodec(mapper, format);
+      assertEquals(patients, codec.decode(codec.encode(patients), new TypeReference<List<Metadata.Patient>>() { }), format.name());
+    }
+  }
+
+  @Test
+  void json_is_legacy() {
+    var codec = new CacheCodec(mapper, CacheCodec.Format.JSON);
+    assertEquals("{\"a\":\"b\"}", new String(codec.encode(Map.of("a", "b")), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void read_legacy() {
+    var codec = new CacheCodec(mapper, CacheCodec.Format.SMILE_GZIP);
+    assertEquals(Map.of("a", "b"), codec.decode("{\"a\":\"b\"}".getBytes(StandardCharsets.UTF_8), new TypeReference<Map<String, String>>() { }));
+  }
+
+  @Test
+  void gzip_only_large_entries() {
+    var codec = new CacheCodec(mapper, CacheCodec.Format.SMILE_GZIP);
+    var small = codec.encode(List.of("1"));
+    assertArrayEquals(new byte[]{(byte) 0xC0, (byte) 0xDE, 1, (byte) CacheCodec.Format.SMILE.ordinal()}, Arrays.copyOf(small, 4));
+    var large = codec.encode(patients);
+    assertEquals(CacheCodec.Format.SMILE_GZIP.ordinal(), large[3]);
+    assertTrue(large.length < new CacheCodec(mapper, CacheCodec.Format.SMILE).encode(patients).length);
+  }
+
+  @Test
+  void smile_is_smaller_than_json() {
+    var json = new CacheCodec(mapper, CacheCodec.Format.JSON).encode(patients);
+    assertTrue(new CacheCodec(mapper, CacheCodec.Format.SMILE).encode(patients).length < json.length);
+  }
+
+  @Test
+  void raw_size_is_the_uncompressed_size() {
+    var codec = new CacheCodec(mapper, CacheCodec.Format.SMILE_GZIP);
+    var large = codec.encode(patients);
+    var smile = new CacheCodec(mapper, CacheCodec.Format.SMILE).encode(patients);
+    assertEquals(smile.length - 4, codec.rawSize(large));
+    assertEquals(smile.length, codec.rawSize(smile));
+  }
+}
@@ -0,0 +1,174 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal local S3 endpoint (path style), objects in memory with metadata, ETag (md5) and the conditional requests
+ * we use: If-None-Match / If-Match on PUT, If-Modified-Since on GET. Also ListObjectsV2 (continuation token is the
+ * last key returned) and multi-object delete.
+ */
+class FakeS3Server implements AutoCloseable {
+
+  record S3Object(byte[] data, Map<String, String> metadata, Instant lastModified, String etag) {
+  }
+
+  private final Javalin app;
+  final Map<String, S3Object> objects = new HashMap<>();
+  final Map<String, AtomicInteger> requests = new HashMap<>();
+
+  FakeS3Server() {
+    app = Javalin.create(conf -> conf.showJavalinBanner = false)
+      .get("/{bucket}", this::list)
+      .post("/{bucket}", this::deleteObjects)
+      .get("/{bucket}/<key>", this::get)
+      .head("/{bucket}/<key>", this::get)
+      .put("/{bucket}/<key>", this::put)
+      .delete("/{bucket}/<key>", this::delete)
+      .start(0);
+  }
+
+  String url() {
+    return "http://localhost:" + app.port();
+  }
+
+  synchronized int requests(String method) {
+    return requests.getOrDefault(method, new AtomicInteger()).get();
+  }
+
+  synchronized void put(String key, byte[] data, Map<String, String> metadata, Instant lastModified) {
+    objects.put(key, new S3Object(data, metadata, lastModified.truncatedTo(ChronoUnit.SECONDS), "\"" + DigestUtils.md5Hex(data) + "\""));
+  }
+
+  private synchronized void count(Context ctx) {
+    requests.computeIfAbsent(ctx.method().name(), m -> new AtomicInteger()).incrementAndGet();
+  }
+
+  private void get(Context ctx) {
+    count(ctx);
+    S3Object object;
+    synchronized (this) {
+      object = objects.get(ctx.pathParam("key"));
+    }
+    if (object == null) {
+      error(ctx, 404, "NoSuchKey");
+      return;
+    }
+    var ifModifiedSince = ctx.header("If-Modified-Since");
+    if (ifModifiedSince != null && !object.lastModified().isAfter(ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant())) {
+      ctx.status(304);
+      return;
+    }
+    ctx.header("ETag", object.etag());
+    ctx.header("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(object.lastModified().atZone(ZoneOffset.UTC)));
+    object.metadata().forEach((name, value) -> ctx.header("x-amz-meta-" + name, value));
+    ctx.contentType("application/octet-stream").result(object.data());
+  }
+
+  private void put(Context ctx) {
+    count(ctx);
+    var data = isChunked(ctx) ? decodeChunks(ctx.bodyAsBytes()) : ctx.bodyAsBytes();
+    var metadata = new HashMap<String, String>();
+    ctx.headerMap().forEach((name, value) -> {
+      if (name.toLowerCase().startsWith("x-amz-meta-")) metadata.put(name.toLowerCase().substring("x-amz-meta-".length()), value);
+    });
+    var key = ctx.pathParam("key");
+    synchronized (this) {
+      var existing = objects.get(key);
+      var ifNoneMatch = ctx.header("If-None-Match");
+      var ifMatch = ctx.header("If-Match");
+      if (("*".equals(ifNoneMatch) && existing != null) || (ifMatch != null && (existing == null || !ifMatch.equals(existing.etag())))) {
+        error(ctx, 412, "PreconditionFailed");
+        return;
+      }
+      put(key, data, metadata, Instant.now());
+      ctx.header("ETag", objects.get(key).etag());
+    }
+  }
+
+  private void delete(Context ctx) {
+    count(ctx);
+    synchronized (this) {
+      objects.remove(ctx.pathParam("key"));
+    }
+    ctx.status(204);
+  }
+
+  private void list(Context ctx) {
+    count(ctx);
+    var prefix = Optional.ofNullable(ctx.queryParam("prefix")).orElse("");
+    var after = Optional.ofNullable(ctx.queryParam("continuation-token")).orElse("");
+    var maxKeys = Optional.ofNullable(ctx.queryParam("max-keys")).map(Integer::parseInt).orElse(1000);
+    List<Map.Entry<String, S3Object>> matching;
+    synchronized (this) {
+      matching = new TreeMap<>(objects).entrySet().stream().filter(e -> e.getKey().startsWith(prefix) && e.getKey().compareTo(after) > 0).toList();
+    }
+    var page = matching.stream().limit(maxKeys).toList();
+    var xml = new StringBuilder("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Name>").append(ctx.pathParam("bucket"))
+      .append("</Name><Prefix>").append(prefix).append("</Prefix><KeyCount>").append(page.size()).append("</KeyCount><MaxKeys>")
+      .append(maxKeys).append("</MaxKeys><IsTruncated>").append(matching.size() > maxKeys).append("</IsTruncated>");
+    page.forEach(e -> xml.append("<Contents><Key>").append(e.getKey()).append("</Key><LastModified>")
+      .append(DateTimeFormatter.ISO_INSTANT.format(e.getValue().lastModified())).append("</LastModified><ETag>")
+      .append(e.getValue().etag().replace("\"", "&quot;")).append("</ETag><Size>").append(e.getValue().data().length)
+      .append("</Size><StorageClass>STANDARD</StorageClass></Contents>"));
+    if (matching.size() > maxKeys) {
+      xml.append("<NextContinuationToken>").append(page.get(page.size() - 1).getKey()).append("</NextContinuationToken>");
+    }
+    ctx.contentType("application/xml").result(xml.append("</ListBucketResult>").toString());
+  }
+
+  private void deleteObjects(Context ctx) {
+    count(ctx);
+    var matcher = Pattern.compile("<Key>(.*?)</Key>").matcher(ctx.body());
+    var xml = new StringBuilder("<DeleteResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+    synchronized (this) {
+      while (matcher.find()) {
+        objects.remove(matcher.group(1));
+        xml.append("<Deleted><Key>").append(matcher.group(1)).append("</Key></Deleted>");
+      }
+    }
+    ctx.contentType("application/xml").result(xml.append("</DeleteResult>").toString());
+  }
+
+  private void error(Context ctx, int status, String code) {
+    ctx.status(status).contentType("application/xml").result("<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>");
+  }
+
+  private boolean isChunked(Context ctx) {
+    return String.valueOf(ctx.header("x-amz-content-sha256")).startsWith("STREAMING-")
+      || String.valueOf(ctx.header("Content-Encoding")).contains("aws-chunked");
+  }
+
+  // <hex size>[;chunk-signature=...]\r\n<data>\r\n ... 0[;...]\r\n[trailers]\r\n
+  private byte[] decodeChunks(byte[] body) {
+    var out = new ByteArrayOutputStream();
+    int pos = 0;
+    while (pos < body.length) {
+      int lineEnd = pos;
+      while (body[lineEnd] != '\r') lineEnd++;
+      var header = new String(body, pos, lineEnd - pos, StandardCharsets.US_ASCII);
+      var size = Integer.parseInt(header.split(";")[0].trim(), 16);
+      if (size == 0) break;
+      out.write(body, lineEnd + 2, size);
+      pos = lineEnd + 2 + size + 2;
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public void close() {
+    app.stop();
+  }
+}
@@ -0,0 +1,56 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResilienceTest {
+
+  final Resilience resilience = new Resilience(3, 1, 10_000, 1000, 1000, false, e -> e instanceof IllegalStateException);
+
+  @Test
+  void only_retryable_failures_are_retried() {
+    var calls = new AtomicInteger();
+    assertThrows(IllegalArgumentException.class, () -> resilience.call("test", () -> {
+      calls.incrementAndGet();
+      throw new IllegalArgumentException("bad request");
+    }));
+    assertEquals(1, calls.get());
+    assertThrows(IllegalStateException.class, () -> resilience.call("test", () -> {
+      calls.incrementAndGet();
+      throw new IllegalStateException("unavailable");
+    }));
+    assertEquals(4, calls.get());
+  }
+
+  @Test
+  void retries_are_limited_by_the_budget() {
+    var calls = new AtomicInteger();
+    for (int i = 0; i < 20; i++) {
+      assertThrows(IllegalStateException.class, () -> resilience.call("test", () -> {
+        calls.incrementAndGet();
+        throw new IllegalStateException("unavailable");
+      }));
+    }
+    // 10 initial tokens, then 0.1 per call
+    assertTrue(calls.get() < 20 + 13, "retries weren't limited: " + calls.get());
+    assertTrue(calls.get() >= 20 + 10);
+  }
+
+  @Test
+  void half_open_trial_rejected_by_the_server_closes_the_breaker() throws Exception {
+    var breaking = new Resilience(1, 1, 10_000, 1, 50, false, e -> e instanceof IllegalStateException);
+    assertThrows(IllegalStateException.class, () -> breaking.call("test", () -> {
+      throw new IllegalStateException("unavailable");
+    }));
+    assertThrows(CircuitBreaker.OpenException.class, () -> breaking.call("test", () -> "ok"));
+    Thread.sleep(60);
+    // the trial got an answer, even a bad request means the server is back
+    assertThrows(IllegalArgumentException.class, () -> breaking.call("test", () -> {
+      throw new IllegalArgumentException("bad request");
+    }));
+    assertEquals("ok", breaking.call("test", () -> "ok"));
+  }
+}
@@ -0,0 +1,105 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import bio.ferlab.clin.qlinme.model.VCFsIndex;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class S3CacheJanitorTest {
+
+  final Instant now = Instant.now();
+  final Instant vcfLastModified = now.minus(Duration.ofDays(2)).truncatedTo(ChronoUnit.SECONDS);
+  final CacheCodec codec = new CacheCodec(new ObjectMapper(), CacheCodec.Format.JSON);
+  FakeS3Server server;
+  S3Client s3Client;
+
+  @BeforeEach
+  void beforeEach() {
+    server = new FakeS3Server();
+    s3Client = new S3Client(server.url(), "minio", "minio123", 5000);
+  }
+
+  @AfterEach
+  void afterEach() {
+    server.close();
+  }
+
+  private void put(String key, Instant lastModified) {
+    server.put(key, new byte[10], Map.of(), lastModified);
+  }
+
+  private S3CacheJanitor janitor(boolean backups) {
+    return new S3CacheJanitor(s3Client, "bucket", codec, 4, Duration.ofHours(1), 1000, backups);
+  }
+
+  @Test
+  void delete_expired_and_orphans() {
+    put(".cache/fhir.panels", now.minus(Duration.ofHours(1)));
+    put(".cache/fhir.patient.1", now.minus(Duration.ofHours(6)));
+    put(".cache/fhir.panels.lease", now.minus(Duration.ofHours(1)));
+    put(".cache/fhir.organizations.lease", now);
+    put(".cache/batch1/1.vcf.gz." + vcfLastModified + ".aliquots", now.minus(Duration.ofDays(1)));  // legacy
+    put(".cache/batch1/2.vcf.gz." + vcfLastModified + ".aliquots", now.minus(Duration.ofHours(1)));
+    put("batch1/metadata.json", vcfLastModified);
+    put(".cache/batch1/vcfs.manifest", now.minus(Duration.ofDays(1)));
+    put(".cache/batch2/vcfs.manifest", now.minus(Duration.ofDays(1)));
+    put(".cache/batch3/vcfs.manifest", now);  // too recent to be sure
+    var batch1 = new VCFsIndex.Location("batch1", "1.vcf.gz", "\"1\"");
+    var batch2 = new VCFsIndex.Location("batch2", "2.vcf.gz", "\"2\"");
+    server.put(".cache/vcfs.index", codec.encode(new VCFsIndex(Map.of("00001", List.of(batch1, batch2), "00002", List.of(batch2)))), Map.of(),
+      now.minus(Duration.ofDays(30)));  // never expires, batch2 is removed from it
+
+    var result = janitor(false).run().orElseThrow();
+
+    assertEquals(10, result.scanned());
+    assertEquals(Map.of(S3CacheJanitor.Kind.expired, 2L, S3CacheJanitor.Kind.leases, 1L, S3CacheJanitor.Kind.orphans, 1L,
+      S3CacheJanitor.Kind.indexLocations, 2L), result.deleted());
+    assertEquals(40, result.reclaimedBytes());
+    assertEquals(2, server.requests("HEAD"));  // one per batch
+    assertEquals(1, server.requests("POST"));
+    assertEquals(7, server.objects.size());
+    assertTrue(server.objects.containsKey(".cache/fhir.panels"));
+    assertTrue(server.objects.containsKey(".cache/vcfs.index"));
+    assertTrue(server.objects.containsKey(".cache/batch1/vcfs.manifest"));
+    assertFalse(server.objects.containsKey(".cache/batch2/vcfs.manifest"));
+    assertEquals(new VCFsIndex(Map.of("00001", List.of(batch1))),
+      codec.decode(server.objects.get(".cache/vcfs.index").data(), new TypeReference<VCFsIndex>() { }));
+  }
+
+  @Test
+  void delete_orphan_backups_if_enabled() {
+    put("batch1/metadata.json", now.minus(Duration.ofDays(1)));
+    put(".backup/batch1/metadata.json.1", now.minus(Duration.ofDays(2)));
+    put(".backup/batch1/metadata.json.latest", now.minus(Duration.ofDays(2)));
+    put(".backup/batch2/metadata.json.1", now.minus(Duration.ofDays(2)));
+    put(".backup/batch2/metadata.json.latest", now.minus(Duration.ofDays(2)));
+
+    assertEquals(Map.of(), janitor(false).run().orElseThrow().deleted());
+    assertEquals(Map.of(S3CacheJanitor.Kind.backups, 2L), janitor(true).run().orElseThrow().deleted());
+    assertTrue(server.objects.containsKey(".backup/batch1/metadata.json.1"));
+    assertFalse(server.objects.containsKey(".backup/batch2/metadata.json.latest"));
+  }
+
+  @Test
+  void delete_by_batches() {
+    IntStream.range(0, 2500).forEach(i -> put(".cache/fhir.patient." + i, now.minus(Duration.ofDays(1))));
+    var janitor = janitor(false);
+    janitor.run();
+    assertEquals(3, server.requests("GET"));  // pages of 1000
+    assertEquals(3, server.requests("POST"));
+    assertTrue(server.objects.isEmpty());
+    assertEquals(2500L, janitor.getMetrics().get("expired"));
+  }
+}
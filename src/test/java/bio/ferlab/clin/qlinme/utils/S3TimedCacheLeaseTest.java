@@ -0,0 +1,133 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class S3TimedCacheLeaseTest {
+
+  final TypeReference<List<String>> type = new TypeReference<>() { };
+  final AtomicInteger loads = new AtomicInteger();
+  FakeS3Server server;
+  List<S3TimedCache> nodes;
+
+  @BeforeEach
+  void beforeEach() {
+    server = new FakeS3Server();
+    // one cache (and S3 client) per node
+    nodes = IntStream.range(0, 4).mapToObj(i -> new S3TimedCache(new S3Client(server.url(), "minio", "minio123", 5000), "bucket",
+      new CacheCodec(new ObjectMapper(), CacheCodec.Format.SMILE_GZIP), 4, 1024 * 1024, Duration.ofHours(1), new WriteBehind(100, 10, 2))).toList();
+  }
+
+  @AfterEach
+  void afterEach() {
+    server.close();
+  }
+
+  @Test
+  void missing_entry_is_loaded_by_one_node() throws Exception {
+    var values = refreshConcurrently(40);
+    assertEquals(1, loads.get());
+    values.forEach(v -> assertEquals(List.of("new"), v));
+    assertFalse(server.objects.containsKey(".cache/fhir.panels.lease"));
+  }
+
+  @Test
+  void expired_entry_is_served_stale_while_one_node_refreshes() throws Exception {
+    server.put(".cache/fhir.panels", "[\"old\"]".getBytes(StandardCharsets.UTF_8),
+      Map.of("expires-at", String.valueOf(Instant.now().minusSeconds(60).toEpochMilli())), Instant.now().minusSeconds(3600));
+    var values = refreshConcurrently(40);
+    assertEquals(1, loads.get());
+    assertTrue(values.contains(List.of("new")));
+    values.forEach(v -> assertTrue(v.equals(List.of("old")) || v.equals(List.of("new"))));
+    assertEquals(List.of("new"), nodes.get(0).get("fhir.panels", type).orElseThrow());
+  }
+
+  @Test
+  void expired_lease_is_taken_over() {
+    server.put(".cache/fhir.panels.lease", String.valueOf(Instant.now().minusSeconds(1).toEpochMilli()).getBytes(StandardCharsets.UTF_8),
+      Map.of(), Instant.now().minusSeconds(60));
+    assertEquals(List.of("new"), nodes.get(0).getOrRefresh("fhir.panels", type, true, this::load));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void entry_is_refreshed_ahead_by_one_node() throws Exception {
+    // still valid but 3/4 of the TTL is elapsed, every node refreshing its reference data at the same time
+    server.put(".cache/fhir.panels", "[\"old\"]".getBytes(StandardCharsets.UTF_8),
+      Map.of("expires-at", String.valueOf(Instant.now().plus(Duration.ofMinutes(30)).toEpochMilli())), Instant.now().minus(Duration.ofMinutes(210)));
+    var values = refreshConcurrently(40, true);
+    assertEquals(1, loads.get());
+    assertTrue(values.contains(List.of("new")));
+    values.forEach(v -> assertTrue(v.equals(List.of("old")) || v.equals(List.of("new"))));
+    assertEquals(List.of("new"), nodes.get(1).getOrRefresh("fhir.panels", type, true, this::load));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void concurrent_no_cache_calls_share_one_load() throws Exception {
+    server.put(".cache/fhir.panels", "[\"old\"]".getBytes(StandardCharsets.UTF_8), Map.of(), Instant.now().minusSeconds(60));
+    var values = refreshConcurrently(40, false);
+    assertEquals(1, loads.get());
+    values.forEach(v -> assertEquals(List.of("new"), v));
+  }
+
+  @Test
+  void no_cache_call_after_a_load_loads_again() {
+    // written by a load that ended before the call, beyond the one second of Last-Modified precision
+    server.put(".cache/fhir.panels", "[\"old\"]".getBytes(StandardCharsets.UTF_8), Map.of(), Instant.now().minusSeconds(2));
+    assertEquals(List.of("new"), nodes.get(1).getOrRefresh("fhir.panels", type, false, this::load));
+    assertEquals(1, loads.get());
+  }
+
+  private List<String> load() {
+    loads.incrementAndGet();
+    try {
+      Thread.sleep(300);  // slow FHIR
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    return List.of("new");
+  }
+
+  private List<List<String>> refreshConcurrently(int count) throws Exception {
+    return refreshConcurrently(count, true);
+  }
+
+  private List<List<String>> refreshConcurrently(int count, boolean allowCache) throws Exception {
+    var ready = new CountDownLatch(1);
+    var futures = new ArrayList<Future<List<String>>>();
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < count; i++) {
+        var node = nodes.get(i % nodes.size());
+        futures.add(executor.submit(() -> {
+          ready.await();
+          return node.getOrRefresh("fhir.panels", type, allowCache, this::load);
+        }));
+      }
+      ready.countDown();
+    }
+    var values = new ArrayList<List<String>>();
+    for (var future : futures) {
+      values.add(future.get());
+    }
+    return values;
+  }
+}
@@ -0,0 +1,130 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import bio.ferlab.clin.qlinme.cients.S3Client;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class S3TimedCacheTest {
+
+  final software.amazon.awssdk.services.s3.S3Client baseS3Client = Mockito.mock(software.amazon.awssdk.services.s3.S3Client.class);
+  final S3Client s3Client = Mockito.mock(S3Client.class);
+  final TypeReference<List<String>> type = new TypeReference<>() { };
+  final WriteBehind writeBehind = new WriteBehind(100, 10, 2);
+  S3TimedCache cache;
+
+  @BeforeEach
+  void beforeEach() {
+    when(s3Client.getS3Client()).thenReturn(baseS3Client);
+    mockEntry(Instant.now(), Map.of());
+    cache = new S3TimedCache(s3Client, "bucket", new CacheCodec(new ObjectMapper(), CacheCodec.Format.SMILE_GZIP), 4, 1024, Duration.ofHours(1), writeBehind);
+  }
+
+  @Test
+  void second_read_is_served_from_memory() {
+    assertEquals(Optional.of(List.of("a", "b")), cache.get("key", type));
+    var first = cache.get("key", type).get();
+    assertSame(first, cache.get("key", type).get());
+    verify(baseS3Client, times(1)).getObjectAsBytes(any(GetObjectRequest.class));
+    verifyNoMoreInteractions(baseS3Client);
+    assertEquals(2L, cache.getMetrics().get("localHits"));
+    assertEquals(1L, cache.getMetrics().get("localMisses"));
+  }
+
+  @Test
+  void written_values_are_served_from_memory() {
+    cache.put("key", List.of("c"));
+    assertEquals(Optional.of(List.of("c")), cache.get("key", type));
+    assertTrue(writeBehind.flush(5000));
+    verify(baseS3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    verifyNoMoreInteractions(baseS3Client);
+  }
+
+  @Test
+  void invalidated_entries_are_removed_from_both_tiers() {
+    cache.put("key", List.of("c"));
+    cache.invalidateAll(List.of("key"));
+    notModified();
+    assertEquals(Optional.empty(), cache.get("key", type));
+    assertTrue(writeBehind.flush(5000));
+    verify(baseS3Client).deleteObject(DeleteObjectRequest.builder().bucket("bucket").key(S3Client.CACHE_FOLDER + "/key").build());
+  }
+
+  @Test
+  void shorter_ttl_is_honoured_in_memory() throws InterruptedException {
+    cache.put("key", List.of("c"));
+    Thread.sleep(20);
+    notModified();
+    assertEquals(Optional.empty(), cache.get("key", type, Duration.ofMillis(10)));
+  }
+
+  @Test
+  void expiry_is_written_in_metadata() {
+    var before = Instant.now().plus(Duration.ofHours(4)).toEpochMilli();
+    cache.put("key", List.of("c"));
+    assertTrue(writeBehind.flush(5000));
+    var request = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(baseS3Client).putObject(request.capture(), any(RequestBody.class));
+    assertTrue(Long.parseLong(request.getValue().metadata().get("expires-at")) >= before);
+  }
+
+  @Test
+  void entries_older_than_ttl_are_not_downloaded() {
+    notModified();
+    assertEquals(Optional.empty(), cache.get("key", type));
+    var request = ArgumentCaptor.forClass(GetObjectRequest.class);
+    verify(baseS3Client).getObjectAsBytes(request.capture());
+    assertTrue(request.getValue().ifModifiedSince().isBefore(Instant.now().minus(Duration.ofHours(4)).plusSeconds(1)));
+  }
+
+  @Test
+  void entries_expired_by_metadata_are_a_miss() {
+    mockEntry(Instant.now().minusSeconds(60), Map.of("expires-at", String.valueOf(Instant.now().minusSeconds(1).toEpochMilli())));
+    assertEquals(Optional.empty(), cache.get("key", type));
+    mockEntry(Instant.now().minusSeconds(60), Map.of("expires-at", String.valueOf(Instant.now().plusSeconds(60).toEpochMilli())));
+    assertEquals(Optional.of(List.of("a", "b")), cache.get("key", type));
+  }
+
+  private void mockEntry(Instant lastModified, Map<String, String> metadata) {
+    when(baseS3Client.getObjectAsBytes(any(GetObjectRequest.class))).thenReturn(
+      ResponseBytes.fromByteArray(GetObjectResponse.builder().lastModified(lastModified).metadata(metadata).build(), "[\"a\",\"b\"]".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private void notModified() {
+    when(baseS3Client.getObjectAsBytes(any(GetObjectRequest.class))).thenThrow(S3Exception.builder().statusCode(304).build());
+  }
+
+  @Test
+  void memory_is_bounded_by_weight() {
+    for (int i = 0; i < 100; i++) {
+      cache.put("key" + i, List.of("0123456789"));  // 14 bytes
+    }
+    assertTrue((long) cache.getMetrics().get("localSize") < 100);
+    assertTrue((long) cache.getMetrics().get("localEvictions") > 0);
+  }
+
+  @Test
+  void weight_is_the_uncompressed_size() {
+    var large = Collections.nCopies(200, "0123456789");  // ~2KB in memory, gzipped far below 1KB
+    cache.put("key", large);
+    assertEquals(0L, cache.getMetrics().get("localSize"));
+  }
+}
@@ -0,0 +1,66 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TaskScopeTest {
+
+  @Test
+  void forked_tasks_run_concurrently() {
+    // every task waits for the three to be started, only possible if they all run at the same time
+    var started = new CountDownLatch(3);
+    try (var scope = new TaskScope()) {
+      var a = scope.fork(() -> { started.countDown(); return started.await(5, TimeUnit.SECONDS) ? "a" : "-"; });
+      var b = scope.fork(() -> { started.countDown(); return started.await(5, TimeUnit.SECONDS) ? "b" : "-"; });
+      var c = scope.fork(() -> { started.countDown(); return started.await(5, TimeUnit.SECONDS) ? "c" : "-"; });
+      scope.join();
+      assertEquals("abc", a.get() + b.get() + c.get());
+    }
+  }
+
+  @Test
+  void first_failure_cancels_the_others() throws InterruptedException {
+    var interrupted = new CountDownLatch(1);
+    var completed = new AtomicBoolean(false);
+    try (var scope = new TaskScope()) {
+      scope.fork(() -> {
+        try {
+          Thread.sleep(10_000);
+          completed.set(true);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+        return null;
+      });
+      scope.fork(() -> { throw new IllegalArgumentException("boom"); });
+      var e = assertThrows(IllegalArgumentException.class, scope::join);
+      assertEquals("boom", e.getMessage());
+    }
+    assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+    assertFalse(completed.get());
+  }
+
+  @Test
+  void task_started_after_a_failure_does_not_run() {
+    var permits = new Semaphore(1) {
+      @Override
+      public void acquire() {
+        acquireUninterruptibly();  // not woken up by the cancel, gets the permit once the failed task releases it
+      }
+    };
+    var ran = new AtomicBoolean(false);
+    try (var scope = new TaskScope(permits)) {
+      scope.fork(() -> { Thread.sleep(200); throw new IllegalArgumentException("boom"); });
+      scope.fork(() -> { ran.set(true); return null; });
+      assertThrows(IllegalArgumentException.class, scope::join);
+    }
+    assertFalse(ran.get());
+  }
+
+}
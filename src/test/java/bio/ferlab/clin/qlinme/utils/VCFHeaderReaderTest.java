@@ -0,0 +1,92 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VCFHeaderReaderTest {
+
+  final AtomicLong fetched = new AtomicLong();
+  final String chrom = "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t00001\t00002\t00003\n";
+
+  @Test
+  void short_header_needs_one_range() throws IOException {
+    var vcf = blocks(header(10) + chrom + variants(100_000), 65280);
+    assertEquals(List.of("00001", "00002", "00003"), read(vcf));
+    assertEquals(64 * 1024, fetched.get());
+  }
+
+  @Test
+  void long_header_needs_more_ranges() throws IOException {
+    var vcf = blocks(header(10_000) + chrom + variants(100_000), 65280);
+    assertEquals(List.of("00001", "00002", "00003"), read(vcf));
+    assertTrue(fetched.get() > 64 * 1024);
+    assertTrue(fetched.get() < vcf.length);
+  }
+
+  @Test
+  void single_gzip_member_and_crlf() throws IOException {
+    var vcf = blocks(header(1_000) + chrom.replace("\n", "\r\n") + variants(10), Integer.MAX_VALUE);
+    assertEquals(List.of("00001", "00002", "00003"), read(vcf));
+  }
+
+  @Test
+  void no_chrom_line() throws IOException {
+    var e = assertThrows(IllegalStateException.class, () -> read(blocks(header(10) + variants(10), 65280)));
+    assertEquals("No #CHROM line found", e.getMessage());
+    assertThrows(IllegalStateException.class, () -> read(blocks(header(10), 65280)));
+    assertThrows(IllegalStateException.class, () -> read("not gzip".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private List<String> read(byte[] vcf) {
+    return VCFHeaderReader.readSampleIDs((offset, length) -> {
+      fetched.addAndGet(length);
+      return Arrays.copyOfRange(vcf, (int) offset, (int) offset + length);
+    }, vcf.length);
+  }
+
+  // random values, compress like the real header
+  private String header(int lines) {
+    var random = new Random(0);
+    var header = new StringBuilder("##fileformat=VCFv4.2\n");
+    for (int i = 0; i < lines; i++) {
+      header.append("##contig=<ID=chr").append(random.nextLong()).append(",length=").append(random.nextLong()).append(">\n");
+    }
+    return header.toString();
+  }
+
+  private String variants(int lines) {
+    var random = new Random(1);
+    var variants = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      variants.append("chr1\t").append(random.nextInt()).append("\t.\tA\tT\t50\tPASS\t.\tGT\t0/1\t0/0\t1/1\n");
+    }
+    return variants.toString();
+  }
+
+  // one gzip member per block of text, as BGZF does
+  private byte[] blocks(String text, int blockSize) throws IOException {
+    var bytes = text.getBytes(StandardCharsets.UTF_8);
+    var out = new ByteArrayOutputStream();
+    for (int i = 0; i < bytes.length; i += blockSize) {
+      try (var gzip = new GZIPOutputStream(out) {
+        @Override
+        public void close() throws IOException {
+          finish();  // keep out open
+        }
+      }) {
+        gzip.write(bytes, i, Math.min(blockSize, bytes.length - i));
+      }
+    }
+    return out.toByteArray();
+  }
+}
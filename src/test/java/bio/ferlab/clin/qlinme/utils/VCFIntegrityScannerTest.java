@@ -0,0 +1,119 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VCFIntegrityScannerTest {
+
+  final VCFIntegrityScanner scanner = new VCFIntegrityScanner(4);
+  final String header = "##fileformat=VCFv4.2\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t00001\n";
+  final byte[] eof = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 0x42, 0x43, 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+  @AfterEach
+  void afterEach() {
+    scanner.close();
+  }
+
+  @Test
+  void valid_vcf() throws IOException {
+    var vcf = bgzf(header + variants(200_000), true);
+    var result = scanner.scan("valid", new ByteArrayInputStream(vcf));
+    assertEquals(List.of(), result.errors());
+    assertEquals(200_002, result.lines());
+    assertTrue(result.blocks() > 100);  // more blocks than the window in flight
+    assertEquals(vcf.length, result.compressedBytes());
+  }
+
+  @Test
+  void truncated_vcf() throws IOException {
+    var vcf = bgzf(header + variants(1_000), false);
+    var result = scanner.scan("truncated", new ByteArrayInputStream(vcf));
+    assertEquals(List.of("BGZF EOF block is missing, the file is truncated"), result.errors());
+
+    var cut = Arrays.copyOf(vcf, vcf.length - 10);
+    result = scanner.scan("cut", new ByteArrayInputStream(cut));
+    assertEquals(1, result.errors().size());
+    assertTrue(result.errors().getFirst().startsWith("Truncated BGZF block at: "));
+  }
+
+  @Test
+  void wrong_column_count() throws IOException {
+    var vcf = bgzf(header + variants(10) + "chr1\t1\t.\tA\tT\t50\tPASS\t.\tGT\n" + variants(10), true);
+    var result = scanner.scan("columns", new ByteArrayInputStream(vcf));
+    assertEquals(List.of("Line 13: 9 columns, expected 10"), result.errors());
+  }
+
+  @Test
+  void corrupted_block() throws IOException {
+    var vcf = bgzf(header + variants(100_000), true);
+    vcf[70_000] ^= 0x55;  // inside the compressed data of the second block
+    var result = scanner.scan("corrupted", new ByteArrayInputStream(vcf));
+    assertEquals(1, result.errors().size());
+    assertTrue(result.errors().getFirst().startsWith("Corrupted BGZF block at: "));
+  }
+
+  @Test
+  void corrupted_header() throws IOException {
+    var vcf = bgzf(header + variants(10), true);
+    var huge = vcf.clone();
+    huge[10] = huge[11] = (byte) 0xFF;  // XLEN larger than a block
+    assertEquals(List.of("Not a BGZF block at: 0"), scanner.scan("huge", new ByteArrayInputStream(huge)).errors());
+    var slen = vcf.clone();
+    slen[14] = 3;  // BC with a 3 bytes value
+    assertEquals(List.of("Not a BGZF block at: 0"), scanner.scan("slen", new ByteArrayInputStream(slen)).errors());
+  }
+
+  private String variants(int count) {
+    var builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      builder.append("chr1\t").append(i).append("\t.\tA\tT\t50\tPASS\tDP=").append(i % 97).append("\tGT\t0/1\n");
+    }
+    return builder.toString();
+  }
+
+  // BGZF as written by bgzip: gzip members of at most 64KB with the BC extra field
+  private byte[] bgzf(String text, boolean withEOF) throws IOException {
+    var data = text.getBytes(StandardCharsets.UTF_8);
+    var out = new ByteArrayOutputStream();
+    var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    var compressed = new byte[70_000];
+    for (int offset = 0; offset < data.length; offset += 60_000) {
+      var length = Math.min(60_000, data.length - offset);
+      deflater.reset();
+      deflater.setInput(data, offset, length);
+      deflater.finish();
+      var compressedLength = deflater.deflate(compressed);
+      var crc = new CRC32();
+      crc.update(data, offset, length);
+      var blockSize = 18 + compressedLength + 8;
+      out.write(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 0x42, 0x43, 2, 0});
+      writeShort(out, blockSize - 1);
+      out.write(compressed, 0, compressedLength);
+      writeInt(out, (int) crc.getValue());
+      writeInt(out, length);
+    }
+    if (withEOF) out.write(eof);
+    return out.toByteArray();
+  }
+
+  private static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write(value & 0xFF);
+    out.write(value >> 8 & 0xFF);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    writeShort(out, value & 0xFFFF);
+    writeShort(out, value >>> 16);
+  }
+}
@@ -0,0 +1,61 @@
+package bio.ferlab.clin.qlinme.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBehindTest {
+
+  @Test
+  void coalesce_by_key_and_drop_when_full() throws InterruptedException {
+    var started = new CountDownLatch(1);
+    var blocked = new CountDownLatch(1);
+    var written = new CopyOnWriteArrayList<String>();
+    try (var writeBehind = new WriteBehind(2, 10, 2)) {
+      writeBehind.submit("blocking", () -> {
+        started.countDown();
+        await(blocked);
+      });
+      started.await();
+      // the next batch is taken once the blocking one is done
+      assertTrue(writeBehind.submit("a", () -> written.add("a1")));
+      assertTrue(writeBehind.submit("a", () -> written.add("a2")));
+      assertTrue(writeBehind.submit("b", () -> written.add("b")));
+      assertFalse(writeBehind.submit("c", () -> written.add("c")));
+      blocked.countDown();
+      assertTrue(writeBehind.flush(5000));
+      assertEquals(List.of("a2", "b"), written);
+      assertEquals(1L, writeBehind.getMetrics().get("coalesced"));
+      assertEquals(1L, writeBehind.getMetrics().get("dropped"));
+      assertEquals(3L, writeBehind.getMetrics().get("written"));
+    }
+  }
+
+  @Test
+  void failures_are_counted_and_close_drains() {
+    var written = new AtomicInteger();
+    var writeBehind = new WriteBehind(1000, 10, 4);
+    writeBehind.submit("failing", () -> { throw new RuntimeException("S3 down"); });
+    for (int i = 0; i < 100; i++) {
+      writeBehind.submit("key" + i, written::incrementAndGet);
+    }
+    writeBehind.close();
+    assertEquals(100, written.get());
+    assertEquals(1L, writeBehind.getMetrics().get("failed"));
+    assertEquals(0, writeBehind.getMetrics().get("pending"));
+    assertFalse(writeBehind.submit("late", written::incrementAndGet));
+  }
+
+  private void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}